@@ -1,5 +1,6 @@
 package fr.novia.zaproxyplugin;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
@@ -9,21 +10,30 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.regex.Matcher;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecuteResultHandler;
@@ -34,7 +44,9 @@ import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 
 import fr.novia.zaproxyplugin.asm.ModifyClassWriterFactory;
+import hudson.maven.MavenModule;
 import hudson.maven.MavenModuleSet;
+import hudson.maven.ModuleDependency;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 
@@ -43,6 +55,14 @@ public class AutoProxy
 	private final static String POM_FILE_NAME = "POM_FILE_NAME";
 	private final static String POM_FILE_PATH = "POM_FILE_PATH";
 	private final static String POM_FILE_DEFAULT_NAME = "pom.xml";
+	/** Next to a patched jar of the workspace, the key of the jar in the cache */
+	private final static String JAR_KEY_EXTENSION = ".key";
+	/** Jars scanned and patched at the same time, reading the jars is bound by the disk beyond that */
+	private final static int MAX_JAR_THREADS = 8;
+	private final static int BUFFER_SIZE = 8192;
+	private final static int MAX_WALK_THREADS = 8;
+	/** Build outputs and directories of the tools, the poms found there aren't the ones of the project */
+	private final static Set<String> PRUNED_DIRS = new HashSet<String>(Arrays.asList("target", "node_modules", "bower_components", ".git", ".svn", ".hg", ".idea", ".zap"));
 	
 	private AbstractBuild<?, ?> build;
 	private BuildListener listener;
@@ -52,6 +72,8 @@ public class AutoProxy
 	private String testFramework;
 	
 	private List<String> classNames = new ArrayList<String>();
+	
+	private MavenClasspathResolver classpathResolver = new MavenClasspathResolver();
 
 	
 	public AutoProxy(AbstractBuild<?, ?> build, BuildListener listener, String projectDir, String testFramework, String proxy)
@@ -94,22 +116,136 @@ public class AutoProxy
 			modifyPom(pom);
 	}
 	
+	/**
+	 * The poms of the reactor of the root pom. Without a root pom, or if it can't be read, the poms found
+	 * in the directory, outside of the build outputs and of the directories of the tools.
+	 */
 	private void getPomFiles(File root, List<String> poms, String pomFileName)
 	{
-		 File[] files = root.listFiles();
-	     
-		 for (File file : files) 
-	     {
-			 if (file.isFile()) 
-			 {
-				 if (file.getName().equalsIgnoreCase(pomFileName))
-					 poms.add(file.getAbsolutePath());
-	         } 
-			 else 
-			 {
-				 getPomFiles(file, poms, pomFileName);
-	         }
-	     }
+		File rootPom = new File(root, pomFileName);
+		if (rootPom.isFile())
+		{
+			try
+			{
+				getReactorPomFiles(rootPom, poms, new HashSet<String>());
+				return;
+			}
+			catch(IOException ex)
+			{
+				ex.printStackTrace();
+				poms.clear();
+			}
+		}
+		
+		walkPomFiles(root, poms, pomFileName);
+	}
+	
+	private void getReactorPomFiles(File pom, List<String> poms, Set<String> visited) throws IOException
+	{
+		// A module listed twice, or in several profiles, is modified once
+		if (!visited.add(pom.getCanonicalPath()))
+			return;
+		
+		poms.add(pom.getAbsolutePath());
+		
+		for (File modulePom : MavenClasspathResolver.getModulePoms(pom))
+			getReactorPomFiles(modulePom, poms, visited);
+	}
+	
+	/**
+	 * Walk the subdirectories of the root at the same time.
+	 */
+	private void walkPomFiles(File root, List<String> poms, final String pomFileName)
+	{
+		File[] files = root.listFiles();
+		if (files == null)
+			return;
+		
+		List<File> dirs = new ArrayList<File>();
+		for (File file : files)
+		{
+			if (file.isFile())
+			{
+				if (file.getName().equalsIgnoreCase(pomFileName))
+					poms.add(file.getAbsolutePath());
+			}
+			else if (file.isDirectory() && !PRUNED_DIRS.contains(file.getName()))
+			{
+				dirs.add(file);
+			}
+		}
+		
+		if (dirs.isEmpty())
+			return;
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(Math.min(Runtime.getRuntime().availableProcessors(), MAX_WALK_THREADS), dirs.size()));
+		try
+		{
+			List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+			for (final File dir : dirs)
+			{
+				results.add(executor.submit(new Callable<List<String>>()
+				{
+					@Override
+					public List<String> call() throws IOException
+					{
+						return walkPomFiles(dir.toPath(), pomFileName);
+					}
+				}));
+			}
+			
+			for (Future<List<String>> result : results)
+			{
+				try
+				{
+					poms.addAll(result.get());
+				}
+				catch(ExecutionException ex)
+				{
+					ex.printStackTrace();
+				}
+			}
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			ex.printStackTrace();
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	private static List<String> walkPomFiles(Path dir, final String pomFileName) throws IOException
+	{
+		final List<String> poms = new ArrayList<String>();
+		
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+			{
+				return PRUNED_DIRS.contains(dir.getFileName().toString()) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+			{
+				if (attrs.isRegularFile() && file.getFileName().toString().equalsIgnoreCase(pomFileName))
+					poms.add(file.toAbsolutePath().toString());
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException ex)
+			{
+				// A directory which can't be read has no pom to modify
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		
+		return poms;
 	}
 	
 	private Map<String, String> getPOMInfo()
@@ -183,6 +319,36 @@ public class AutoProxy
 		}
 	}
 	
+	/**
+	 * @return the versions of the dependencies recorded by the module of the pom in the Maven project of the build,
+	 * by groupId:artifactId
+	 */
+	private Map<String, String> getRecordedVersions(File pom) throws IOException
+	{
+		Map<String, String> versions = new HashMap<String, String>();
+		if (build == null || !(build.getProject() instanceof MavenModuleSet))
+			return versions;
+		
+		// Only the versions of the module of the pom, the modules can depend on different versions.
+		// The artifacts recorded by the build are the ones the modules produce, the versions of their
+		// dependencies are recorded as the dependencies of the modules
+		String projectKey = MavenClasspathResolver.getProjectKey(pom);
+		for (MavenModule module : ((MavenModuleSet)build.getProject()).getModules())
+		{
+			if (!projectKey.equals(module.getModuleName().groupId + ":" + module.getModuleName().artifactId))
+				continue;
+			
+			for (ModuleDependency dependency : module.getDependencies())
+			{
+				// * when the version wasn't known
+				if (dependency.version != null && !"*".equals(dependency.version))
+					versions.put(dependency.groupId + ":" + dependency.artifactId, dependency.version);
+			}
+		}
+		
+		return versions;
+	}
+	
 	private void calPOMInfoByDefault(Map<String, String> pomInfo)
 	{
 		pomInfo.put(POM_FILE_NAME, POM_FILE_DEFAULT_NAME);
@@ -235,6 +401,7 @@ public class AutoProxy
 		private String pom;
 		private String destDir;
 		private String proxy;
+		private ProxyJarCache jarCache = new ProxyJarCache();
 		
 		public ModifyClass4Proxy(String pom, String workspace, String proxy)
 		{
@@ -251,187 +418,362 @@ public class AutoProxy
 			if (allJars == null)
 				return modifiedJars;
 			
+			// The jars of the same name are copied to the same file of the workspace, the first one in the classpath wins
+			Map<String, String> jarsByName = new LinkedHashMap<String, String>();
+			File patchedJarsDir = new File(destDir).getAbsoluteFile();
 			for (String jarName : allJars)
 			{
-				if (isNeedModify(jarName))
+				// A pom modified by a previous run has the patched copies on its classpath, they would be
+				// overwritten while being read: the original jars after them are patched instead
+				if (patchedJarsDir.equals(new File(jarName).getAbsoluteFile().getParentFile()))
+					continue;
+				
+				String fileName = new File(jarName).getName();
+				if (!jarsByName.containsKey(fileName))
+					jarsByName.put(fileName, jarName);
+			}
+			
+			int threads = Math.max(1, Math.min(Math.min(Runtime.getRuntime().availableProcessors(), MAX_JAR_THREADS), jarsByName.size()));
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try
+			{
+				List<Future<String>> results = new ArrayList<Future<String>>();
+				for (final String jarName : jarsByName.values())
 				{
-					String copyJarName = copyAndModifyJar(jarName);
-					modifiedJars.add(copyJarName);
+					results.add(executor.submit(new Callable<String>()
+					{
+						@Override
+						public String call()
+						{
+							return processJar(jarName);
+						}
+					}));
 				}
+				
+				for (Future<String> result : results)
+				{
+					try
+					{
+						String copyJarName = result.get();
+						if (copyJarName != null)
+							modifiedJars.add(copyJarName);
+					}
+					catch(ExecutionException ex)
+					{
+						logError("Jar not patched", ex.getCause());
+					}
+				}
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				logError("Patch of the jars interrupted", ex);
+			}
+			finally
+			{
+				executor.shutdownNow();
 			}
 			
 			return modifiedJars;
 		}
 		
-		public String copyAndModifyJar(String jarName)
+		/**
+		 * Find and patch the classes of a jar, the jar is opened once.
+		 * 
+		 * @return the patched copy of the jar in the workspace, null if the jar has none of the classes
+		 */
+		private String processJar(String jarName)
 		{
-			String copyJarName = copyJarToWorkspace(jarName);
-			modifyJarByASM(copyJarName);
-			
-			return copyJarName;
+			JarFile jarFile = null;
+			try
+			{
+				jarFile = new JarFile(jarName);
+				
+				Map<String, String> classFileNames = getClassFileNames(jarFile);
+				if (classFileNames.isEmpty())
+					return null;
+				
+				return copyAndModifyJar(jarName, jarFile, classFileNames);
+			}
+			catch(IOException ex)
+			{
+				logError("Jar [" + jarName + "] not read", ex);
+				return null;
+			}
+			finally
+			{
+				if (jarFile != null)
+				{
+					try 
+					{
+						jarFile.close();
+					} 
+					catch (IOException e) 
+					{
+						logError("Jar [" + jarName + "] not closed", e);
+					}
+				}
+			}
 		}
 		
-		private String copyJarToWorkspace(String jarName)
+		/**
+		 * @return the entries of the classes to patch found in the jar, with their class name
+		 */
+		private Map<String, String> getClassFileNames(JarFile jarFile)
 		{
-			File fileDir = new File(destDir);
-			if (!fileDir.exists())
-				fileDir.mkdirs();
+			Map<String, String> classFileNames = new LinkedHashMap<String, String>();
 			
-			String srcFileName = jarName;
-			int index = srcFileName.lastIndexOf(File.separator);
-			if (index != -1)
-				srcFileName = srcFileName.substring(index + 1);
-			
-			String dstFileName = destDir + File.separator + srcFileName;
-			File destFile = new File(dstFileName);
+			for (String className : classNames)
+			{
+				String classFileName = className.replaceAll("\\.", "/");
+				if (!classFileName.endsWith(".class"))
+					classFileName = classFileName + ".class";
+				
+				if (jarFile.getJarEntry(classFileName) != null)
+					classFileNames.put(classFileName, className);
+			}
 			
-			//if (destFile.exists())
-			//	return dstFileName;
+			return classFileNames;
+		}
+		
+		/**
+		 * @return the patched copy of the jar in the workspace, null if it couldn't be patched:
+		 * the pom keeps the original jar
+		 */
+		private String copyAndModifyJar(String jarName, JarFile jarFile, Map<String, String> classFileNames)
+		{
+			String copyJarName = destDir + File.separator + new File(jarName).getName();
 			
+			String key;
 			try
 			{
-				Files.copy(new File(jarName).toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				key = jarCache.getKey(jarName, classNames, proxy);
 			}
-			catch(Exception ex)
+			catch(IOException ex)
 			{
-				ex.printStackTrace();
+				logError("Jar [" + jarName + "] patched without the cache", ex);
+				return modifyJarByASM(jarFile, classFileNames, copyJarName) ? copyJarName : discard(jarName, copyJarName);
 			}
 			
-			return dstFileName;
-		}
-		
-		private void modifyJarByASM(String copyJarName)
-		{
-			List<String> needModifyClasseFiles = new ArrayList<String>();
+			File keyFile = new File(copyJarName + JAR_KEY_EXTENSION);
 			
-			for (String className : classNames)
+			try
 			{
-				JarFile jarFile = null;
-				String classFileName = className;
+				// Patched by a previous build of this workspace
+				if (new File(copyJarName).isFile() && keyFile.isFile() && key.equals(new String(Files.readAllBytes(keyFile.toPath()), "UTF-8")))
+					return copyJarName;
 				
-				try
+				File cachedJar = jarCache.get(key, jarName);
+				if (cachedJar != null)
 				{
-					jarFile = new JarFile(copyJarName);
-					classFileName = classFileName.replaceAll("\\.", "/");
-					
-					if (!classFileName.endsWith(".class"))
-						classFileName = classFileName + ".class";
-					
-					File file = new File(destDir + File.separator + classFileName);
-					//if (file.exists())
-					//	continue;
-					
-					JarEntry entry = jarFile.getJarEntry(classFileName);
-					if (entry == null)
-						continue;
-					
-					InputStream is = jarFile.getInputStream(entry);
-					
-					ClassReader cr = new ClassReader(is);
-					ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-					ClassVisitor cv = ModifyClassWriterFactory.createClassWriter(cw, className, proxy);
-					cr.accept(cv, 0);
-			        
-			        String classPath = "";
-			        int index = classFileName.lastIndexOf("/");
-			        
-			        if (index != -1)
-			        {
-			        	classPath = classFileName.substring(0, index);
-			        	classPath = classPath.replaceAll("\\/", Matcher.quoteReplacement(File.separator));
-			        	File path = new File(destDir + File.separator + classPath);
-			        	path.mkdirs();
-			        }
-			        
-			        byte[] data = cw.toByteArray();
-			        
-			        FileOutputStream fout = new FileOutputStream(file);
-			        fout.write(data);
-			        fout.close();
-			        
-			        needModifyClasseFiles.add(classFileName);
+					new File(destDir).mkdirs();
+					Files.copy(cachedJar.toPath(), new File(copyJarName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+					if (listener != null)
+						listener.getLogger().println("Patched jar [" + cachedJar.getName() + "] reused from the cache");
 				}
-				catch(Exception ex)
-				{
-					ex.printStackTrace();
-				}
-				finally
+				else
 				{
-					try 
+					// A jar which failed to be patched is patched again by the next build
+					if (!modifyJarByASM(jarFile, classFileNames, copyJarName))
+						return discard(jarName, copyJarName);
+					
+					// The patched jar is used anyway, the next build patches it again
+					try
 					{
-						jarFile.close();
-					} 
-					catch (IOException e) 
+						jarCache.put(key, jarName, new File(copyJarName));
+					}
+					catch(IOException ex)
 					{
-						e.printStackTrace();
+						logError("Patched jar [" + copyJarName + "] not cached", ex);
 					}
 				}
+				
+				Files.write(keyFile.toPath(), key.getBytes("UTF-8"));
+			}
+			catch(IOException ex)
+			{
+				logError("Patched jar [" + copyJarName + "] not written", ex);
+				return discard(jarName, copyJarName);
 			}
 			
-			updateJar(copyJarName, needModifyClasseFiles);
+			return copyJarName;
 		}
 		
-		private void updateJar(String JarName, List<String> needModifyClasseFiles)
+		/**
+		 * Delete what was written of a jar which couldn't be patched, so that no build uses it.
+		 * 
+		 * @return null, the jar isn't added to the pom
+		 */
+		private String discard(String jarName, String copyJarName)
 		{
-			for (String classFileName : needModifyClasseFiles)
+			new File(copyJarName).delete();
+			new File(copyJarName + JAR_KEY_EXTENSION).delete();
+			if (listener != null)
+				listener.getLogger().println("Jar [" + jarName + "] not patched, left out of the pom");
+			return null;
+		}
+		
+		/**
+		 * Patch the classes read from the source jar in memory and write the copy of the jar with them.
+		 * 
+		 * @param classFileNames the entries of the classes to patch, with their class name
+		 * @return false if a class couldn't be patched
+		 */
+		private boolean modifyJarByASM(JarFile jarFile, Map<String, String> classFileNames, String copyJarName)
+		{
+			Map<String, byte[]> patchedClasses = new LinkedHashMap<String, byte[]>();
+			boolean patched = true;
+			
+			for (Map.Entry<String, String> classFileName : classFileNames.entrySet())
 			{
+				InputStream is = null;
 				try
 				{
-					File file = new File(destDir + File.separator + classFileName);
-					Path path = Paths.get(new File(JarName).toURI());
-					FileSystem zipfs = FileSystems.newFileSystem(path, null);
-					Path externalTxtFile = Paths.get(file.getAbsolutePath());
-					Path pathInZipfile = zipfs.getPath(classFileName);          
-					Files.copy(externalTxtFile, pathInZipfile, StandardCopyOption.REPLACE_EXISTING);
-					zipfs.close();
+					is = jarFile.getInputStream(jarFile.getJarEntry(classFileName.getKey()));
+					
+					ClassReader cr = new ClassReader(is);
+					ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+					ClassVisitor cv = ModifyClassWriterFactory.createClassWriter(cw, classFileName.getValue(), proxy);
+					cr.accept(cv, 0);
+					
+					patchedClasses.put(classFileName.getKey(), cw.toByteArray());
 				}
 				catch(Exception ex)
 				{
-					ex.printStackTrace();
+					logError("Class [" + classFileName.getValue() + "] not patched", ex);
+					patched = false;
+				}
+				finally
+				{
+					if (is != null)
+					{
+						try 
+						{
+							is.close();
+						} 
+						catch (IOException e) 
+						{
+							logError("Class [" + classFileName.getValue() + "] not closed", e);
+						}
+					}
 				}
 			}
+			
+			return writeJar(jarFile, patchedClasses, copyJarName) && patched;
 		}
 		
-		public boolean isNeedModify(String jarName)
+		/**
+		 * Copy the entries of the source jar to the workspace in one pass, the patched classes
+		 * replacing the original ones.
+		 * 
+		 * @return false if the copy couldn't be written
+		 */
+		private boolean writeJar(JarFile jarFile, Map<String, byte[]> patchedClasses, String copyJarName)
 		{
-			JarFile jar = null;
-			try 
+			new File(destDir).mkdirs();
+			
+			JarOutputStream out = null;
+			try
 			{
-				jar = new JarFile(jarName);
+				out = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(copyJarName), BUFFER_SIZE));
+				byte[] buffer = new byte[BUFFER_SIZE];
 				
-				for (String className : classNames)
+				Enumeration<JarEntry> entries = jarFile.entries();
+				while (entries.hasMoreElements())
 				{
-					className = className.replaceAll("\\.", "/");
-					if (!className.endsWith(".class"))
-						className = className + ".class";
-				
-				if (jar.getJarEntry(className) != null)
-					return true;
+					JarEntry entry = entries.nextElement();
+					byte[] patchedClass = patchedClasses.get(entry.getName());
+					
+					// The compressed size changes with the compression, it is set by the stream
+					JarEntry copy = new JarEntry(entry.getName());
+					copy.setTime(entry.getTime());
+					if (patchedClass == null && entry.getMethod() == ZipEntry.STORED)
+					{
+						copy.setMethod(ZipEntry.STORED);
+						copy.setSize(entry.getSize());
+						copy.setCompressedSize(entry.getSize());
+						copy.setCrc(entry.getCrc());
+					}
+					out.putNextEntry(copy);
+					
+					if (patchedClass != null)
+					{
+						out.write(patchedClass);
+					}
+					else
+					{
+						InputStream in = jarFile.getInputStream(entry);
+						try
+						{
+							int read;
+							while ((read = in.read(buffer)) != -1)
+								out.write(buffer, 0, read);
+						}
+						finally
+						{
+							in.close();
+						}
+					}
+					
+					out.closeEntry();
 				}
-			} 
-			catch (IOException e) 
+				
+				return true;
+			}
+			catch(IOException ex)
 			{
-				e.printStackTrace();
+				logError("Jar [" + copyJarName + "] not written", ex);
+				return false;
 			}
 			finally
 			{
-				if (jar != null)
+				if (out != null)
 				{
 					try 
 					{
-						jar.close();
+						out.close();
 					} 
 					catch (IOException e) 
 					{
-						e.printStackTrace();
+						logError("Jar [" + copyJarName + "] not closed", e);
 					}
 				}
 			}
+		}
+		
+		/**
+		 * Log an error to the build: the jars are patched in the threads of a pool, whose standard
+		 * error doesn't go to the build log.
+		 */
+		private void logError(String message, Throwable ex)
+		{
+			if (listener == null)
+			{
+				ex.printStackTrace();
+				return;
+			}
 			
-			return false;
+			listener.getLogger().println(message);
+			ex.printStackTrace(listener.getLogger());
 		}
 		
 		public String[] getJarsInClasspath()
+		{
+			try
+			{
+				List<String> jars = classpathResolver.resolve(new File(pom), getRecordedVersions(new File(pom)));
+				return jars.toArray(new String[jars.size()]);
+			}
+			catch(IOException ex)
+			{
+				if (listener != null)
+					listener.getLogger().println("Classpath of [" + pom + "] not resolved from the local repository (" + ex.getMessage() + "), run Maven");
+			}
+			
+			return getJarsInClasspathFromMaven();
+		}
+		
+		private String[] getJarsInClasspathFromMaven()
 		{
 			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 			ByteArrayOutputStream errorStream = new ByteArrayOutputStream();  
@@ -0,0 +1,553 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Resolves the test classpath of a pom without forking Maven: the jars of the dependencies of the pom,
+ * all scopes, and of their compile and runtime dependencies, found in the local repository.
+ * The poms are read with their parents, properties, dependency management (imports included)
+ * and exclusions, the nearest version of a dependency wins.
+ *
+ * Only what is already in the local repository is found, and neither profiles nor version ranges are
+ * read: the resolution fails with an {@link IOException} rather than return a partial classpath, and
+ * the caller runs Maven instead. The classpaths are cached by hash of the pom content, and a cached
+ * classpath is only used while all the poms it was read from are unchanged and all its jars exist.
+ * The poms are read without DOCTYPE, so that a pom can't include external entities.
+ */
+public class MavenClasspathResolver
+{
+	private static final String DEFAULT_LOCAL_REPOSITORY = ".m2" + File.separator + "repository";
+	private static final Pattern PROPERTY_PATTERN = Pattern.compile("\\$\\{([^}]+)\\}");
+
+	// hash of a pom, of the versions recorded for it and of the local repository -> its classpath
+	private static final ConcurrentMap<String, Resolution> classpaths = new ConcurrentHashMap<String, Resolution>();
+
+	private final File localRepository;
+	// poms read by this resolver, by path
+	private final Map<String, Model> models = new HashMap<String, Model>();
+
+	public MavenClasspathResolver()
+	{
+		this(getDefaultLocalRepository());
+	}
+
+	public MavenClasspathResolver(File localRepository)
+	{
+		this.localRepository = localRepository;
+	}
+
+	/**
+	 * @return the local repository of the settings of the user, ~/.m2/repository by default
+	 */
+	private static File getDefaultLocalRepository()
+	{
+		if (System.getProperty("maven.repo.local") != null)
+			return new File(System.getProperty("maven.repo.local"));
+
+		File home = new File(System.getProperty("user.home"));
+		File settings = new File(home, ".m2" + File.separator + "settings.xml");
+		if (settings.isFile())
+		{
+			try
+			{
+				NodeList localRepositories = parse(settings).getDocumentElement().getElementsByTagName("localRepository");
+				if (localRepositories.getLength() > 0 && localRepositories.item(0).getTextContent().trim().length() > 0)
+					return new File(localRepositories.item(0).getTextContent().trim().replace("${user.home}", home.getAbsolutePath()));
+			}
+			catch (IOException e)
+			{
+				// Default repository
+			}
+		}
+
+		return new File(home, DEFAULT_LOCAL_REPOSITORY);
+	}
+
+	/**
+	 * @param recordedVersions the versions of the dependencies by groupId:artifactId, recorded by Jenkins
+	 * for a Maven project. They win over the versions read from the poms. Empty if there are none
+	 * @return the paths of the jars of the classpath
+	 * @throws IOException if a pom can't be read or a jar isn't in the local repository
+	 */
+	public List<String> resolve(File pom, Map<String, String> recordedVersions) throws IOException
+	{
+		String key = Util.getDigestOf(pom) + Util.getDigestOf(new TreeMap<String, String>(recordedVersions).toString() + localRepository.getAbsolutePath());
+
+		Resolution resolution = classpaths.get(key);
+		if (resolution == null || !resolution.isUpToDate())
+		{
+			List<String> classpath = Collections.unmodifiableList(resolveDependencies(getModel(pom), recordedVersions));
+			// All the poms read so far, the poms of the classpath among them
+			Map<String, String> pomDigests = new HashMap<String, String>();
+			for (String modelPom : models.keySet())
+				pomDigests.put(modelPom, Util.getDigestOf(new File(modelPom)));
+
+			resolution = new Resolution(classpath, pomDigests);
+			classpaths.put(key, resolution);
+		}
+
+		return resolution.classpath;
+	}
+
+	/**
+	 * @return the groupId:artifactId of a pom, with the groupId of its parent if it has none of its own
+	 */
+	public static String getProjectKey(File pom) throws IOException
+	{
+		Element project = parse(pom).getDocumentElement();
+		String groupId = getChildText(project, "groupId") != null ? getChildText(project, "groupId") : getChildText(getChild(project, "parent"), "groupId");
+		return groupId + ":" + getChildText(project, "artifactId");
+	}
+
+	private List<String> resolveDependencies(Model project, Map<String, String> recordedVersions) throws IOException
+	{
+		List<String> classpath = new ArrayList<String>();
+		// groupId:artifactId:type:classifier of the artifacts already on the classpath, the nearest wins
+		Set<String> resolved = new HashSet<String>();
+
+		Queue<Dependency> queue = new LinkedList<Dependency>();
+		Set<String> direct = new HashSet<String>();
+		for (Dependency dependency : project.getDependencies())
+		{
+			queue.add(dependency);
+			direct.add(dependency.getKey());
+		}
+
+		while (!queue.isEmpty())
+		{
+			Dependency dependency = queue.poll();
+			if (!resolved.add(dependency.getArtifactKey()))
+				continue;
+
+			// The versions of the project win over the versions of the dependencies
+			String version = dependency.version;
+			if (recordedVersions.containsKey(dependency.getKey()))
+				version = recordedVersions.get(dependency.getKey());
+			else if (!direct.contains(dependency.getKey()) && project.managedVersions.containsKey(dependency.getKey()))
+				version = project.managedVersions.get(dependency.getKey()).version;
+
+			if ("system".equals(dependency.scope))
+			{
+				if (dependency.systemPath == null || !new File(dependency.systemPath).isFile())
+					throw new IOException("System dependency " + dependency.getKey() + " not found");
+				classpath.add(dependency.systemPath);
+				continue;
+			}
+
+			if (version == null || version.indexOf("${") != -1 || version.startsWith("[") || version.startsWith("("))
+				throw new IOException("Version of " + dependency.getKey() + " not resolved [" + version + "]");
+
+			if (!"pom".equals(dependency.type))
+			{
+				File jar = getArtifact(dependency.groupId, dependency.artifactId, version, dependency.getClassifier(), "jar");
+				if (!jar.isFile())
+					throw new IOException("Jar not in the local repository [" + jar.getAbsolutePath() + "]");
+				classpath.add(jar.getAbsolutePath());
+			}
+
+			Model model = getModel(getArtifact(dependency.groupId, dependency.artifactId, version, null, "pom"));
+			for (Dependency transitive : model.getDependencies())
+			{
+				if ("test".equals(transitive.scope) || "provided".equals(transitive.scope) || transitive.optional || dependency.excludes(transitive))
+					continue;
+
+				transitive.exclusions.addAll(dependency.exclusions);
+				queue.add(transitive);
+			}
+		}
+
+		return classpath;
+	}
+
+	private File getArtifact(String groupId, String artifactId, String version, String classifier, String extension)
+	{
+		String fileName = artifactId + "-" + version + (classifier == null ? "" : "-" + classifier) + "." + extension;
+		return new File(localRepository, groupId.replace('.', File.separatorChar) + File.separator + artifactId + File.separator + version + File.separator + fileName);
+	}
+
+	private Model getModel(File pom) throws IOException
+	{
+		Model model = models.get(pom.getAbsolutePath());
+		if (model == null)
+		{
+			if (!pom.isFile())
+				throw new IOException("Pom not found [" + pom.getAbsolutePath() + "]");
+			model = new Model(pom);
+			models.put(pom.getAbsolutePath(), model);
+		}
+		return model;
+	}
+
+	/**
+	 * @return the poms of the modules declared by a reactor pom, in the pom itself and in its profiles.
+	 * A module which doesn't exist is left out
+	 */
+	public static List<File> getModulePoms(File pom) throws IOException
+	{
+		Element project = parse(pom).getDocumentElement();
+
+		List<Element> modulesElements = new ArrayList<Element>();
+		modulesElements.add(getChild(project, "modules"));
+		for (Element profile : getChildren(getChild(project, "profiles"), "profile"))
+			modulesElements.add(getChild(profile, "modules"));
+
+		List<File> modulePoms = new ArrayList<File>();
+		for (Element modules : modulesElements)
+		{
+			for (Element module : getChildren(modules, "module"))
+			{
+				// A module is a directory with a pom.xml, or the path of its pom
+				File modulePom = new File(pom.getParentFile(), module.getTextContent().trim());
+				if (modulePom.isDirectory())
+					modulePom = new File(modulePom, "pom.xml");
+				if (modulePom.isFile() && !modulePoms.contains(modulePom))
+					modulePoms.add(modulePom);
+			}
+		}
+
+		return modulePoms;
+	}
+
+	private static Document parse(File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+			factory.setXIncludeAware(false);
+			factory.setExpandEntityReferences(false);
+			return factory.newDocumentBuilder().parse(in);
+		}
+		catch (IOException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Pom not read [" + file.getAbsolutePath() + "]", e);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the text of the child element, null if there is none
+	 */
+	private static String getChildText(Element element, String name)
+	{
+		Element child = getChild(element, name);
+		return child == null ? null : child.getTextContent().trim();
+	}
+
+	private static Element getChild(Element element, String name)
+	{
+		if (element == null)
+			return null;
+
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			if (child instanceof Element && name.equals(child.getNodeName()))
+				return (Element)child;
+		}
+		return null;
+	}
+
+	private static List<Element> getChildren(Element element, String name)
+	{
+		List<Element> children = new ArrayList<Element>();
+		if (element == null)
+			return children;
+
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			if (child instanceof Element && name.equals(child.getNodeName()))
+				children.add((Element)child);
+		}
+		return children;
+	}
+
+	/**
+	 * A classpath, with the hashes of the poms it was read from.
+	 */
+	private static class Resolution
+	{
+		private final List<String> classpath;
+		// path of a pom -> its hash
+		private final Map<String, String> pomDigests;
+
+		private Resolution(List<String> classpath, Map<String, String> pomDigests)
+		{
+			this.classpath = classpath;
+			this.pomDigests = pomDigests;
+		}
+
+		/**
+		 * @return false if a pom changed or a jar was removed from the local repository since the resolution
+		 */
+		private boolean isUpToDate() throws IOException
+		{
+			for (Map.Entry<String, String> pomDigest : pomDigests.entrySet())
+			{
+				File pom = new File(pomDigest.getKey());
+				if (!pom.isFile() || !Util.getDigestOf(pom).equals(pomDigest.getValue()))
+					return false;
+			}
+
+			for (String jar : classpath)
+			{
+				if (!new File(jar).isFile())
+					return false;
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * A pom with what it inherits from its parents.
+	 */
+	private class Model
+	{
+		private final Properties properties = new Properties();
+		// groupId:artifactId -> managed dependency
+		private final Map<String, Dependency> managedVersions = new LinkedHashMap<String, Dependency>();
+		// groupId:artifactId -> dependency, not interpolated
+		private final Map<String, Element> dependencies = new LinkedHashMap<String, Element>();
+
+		private Model(File pom) throws IOException
+		{
+			Element project = parse(pom).getDocumentElement();
+			Element parent = getChild(project, "parent");
+
+			Model parentModel = null;
+			if (parent != null)
+			{
+				parentModel = getModel(getParentPom(pom, parent));
+				properties.putAll(parentModel.properties);
+				dependencies.putAll(parentModel.dependencies);
+			}
+
+			String groupId = getChildText(project, "groupId") != null ? getChildText(project, "groupId") : getChildText(parent, "groupId");
+			String version = getChildText(project, "version") != null ? getChildText(project, "version") : getChildText(parent, "version");
+			for (String prefix : new String[] { "project.", "pom.", "" })
+			{
+				setProperty(prefix + "groupId", groupId);
+				setProperty(prefix + "artifactId", getChildText(project, "artifactId"));
+				setProperty(prefix + "version", version);
+			}
+			setProperty("project.parent.groupId", getChildText(parent, "groupId"));
+			setProperty("project.parent.version", getChildText(parent, "version"));
+			setProperty("basedir", pom.getAbsoluteFile().getParent());
+			setProperty("project.basedir", pom.getAbsoluteFile().getParent());
+
+			Element propertiesElement = getChild(project, "properties");
+			if (propertiesElement != null)
+			{
+				for (Node property = propertiesElement.getFirstChild(); property != null; property = property.getNextSibling())
+				{
+					if (property instanceof Element)
+						setProperty(property.getNodeName(), property.getTextContent().trim());
+				}
+			}
+
+			if (parentModel != null)
+			{
+				// Managed by the parents
+				for (Dependency managed : parentModel.managedVersions.values())
+					managedVersions.put(managed.getKey(), managed);
+			}
+
+			for (Element element : getChildren(getChild(getChild(project, "dependencyManagement"), "dependencies"), "dependency"))
+			{
+				Dependency managed = new Dependency(element, this);
+				if ("import".equals(managed.scope) && "pom".equals(managed.type))
+				{
+					Model bom = getModel(getArtifact(managed.groupId, managed.artifactId, managed.version, null, "pom"));
+					for (Dependency imported : bom.managedVersions.values())
+					{
+						if (!managedVersions.containsKey(imported.getKey()))
+							managedVersions.put(imported.getKey(), imported);
+					}
+				}
+				else
+				{
+					managedVersions.put(managed.getKey(), managed);
+				}
+			}
+
+			for (Element element : getChildren(getChild(project, "dependencies"), "dependency"))
+				dependencies.put(interpolate(getChildText(element, "groupId")) + ":" + interpolate(getChildText(element, "artifactId")), element);
+		}
+
+		/**
+		 * @return the pom of the parent, next to this pom or in the local repository
+		 */
+		private File getParentPom(File pom, Element parent)
+		{
+			String relativePath = getChildText(parent, "relativePath");
+			File parentPom = new File(pom.getAbsoluteFile().getParentFile(), relativePath == null ? ".." + File.separator + "pom.xml" : relativePath);
+			if (parentPom.isDirectory())
+				parentPom = new File(parentPom, "pom.xml");
+
+			if (parentPom.isFile())
+			{
+				try
+				{
+					Element project = parse(parentPom).getDocumentElement();
+					if (getChildText(parent, "artifactId").equals(getChildText(project, "artifactId")))
+						return parentPom;
+				}
+				catch (IOException e)
+				{
+					// Not the parent, from the repository
+				}
+			}
+
+			return getArtifact(getChildText(parent, "groupId"), getChildText(parent, "artifactId"), getChildText(parent, "version"), null, "pom");
+		}
+
+		private void setProperty(String name, String value)
+		{
+			if (value != null)
+				properties.setProperty(name, value);
+		}
+
+		/**
+		 * @return the dependencies with the properties of this pom, the versions of the dependency management
+		 */
+		private List<Dependency> getDependencies()
+		{
+			List<Dependency> resolved = new ArrayList<Dependency>();
+			for (Element element : dependencies.values())
+			{
+				Dependency dependency = new Dependency(element, this);
+				Dependency managed = managedVersions.get(dependency.getKey());
+				if (managed != null)
+				{
+					if (dependency.version == null)
+						dependency.version = managed.version;
+					if (dependency.scope == null)
+						dependency.scope = managed.scope;
+					dependency.exclusions.addAll(managed.exclusions);
+				}
+				resolved.add(dependency);
+			}
+			return resolved;
+		}
+
+		private String interpolate(String value)
+		{
+			if (value == null)
+				return null;
+
+			// Properties may refer to other properties
+			for (int i = 0; i < 10 && value.indexOf("${") != -1; i++)
+			{
+				Matcher matcher = PROPERTY_PATTERN.matcher(value);
+				StringBuffer interpolated = new StringBuffer();
+				while (matcher.find())
+				{
+					String property = properties.getProperty(matcher.group(1), System.getProperty(matcher.group(1)));
+					matcher.appendReplacement(interpolated, Matcher.quoteReplacement(property == null ? matcher.group() : property));
+				}
+				matcher.appendTail(interpolated);
+
+				if (interpolated.toString().equals(value))
+					break;
+				value = interpolated.toString();
+			}
+			return value;
+		}
+	}
+
+	private static class Dependency
+	{
+		private final String groupId;
+		private final String artifactId;
+		private String version;
+		private String scope;
+		private final String type;
+		private final String classifier;
+		private final boolean optional;
+		private final String systemPath;
+		// groupId:artifactId, * for any
+		private final Set<String> exclusions = new HashSet<String>();
+
+		private Dependency(Element element, Model model)
+		{
+			this.groupId = model.interpolate(getChildText(element, "groupId"));
+			this.artifactId = model.interpolate(getChildText(element, "artifactId"));
+			this.version = model.interpolate(getChildText(element, "version"));
+			this.scope = model.interpolate(getChildText(element, "scope"));
+			this.type = getChildText(element, "type") == null ? "jar" : model.interpolate(getChildText(element, "type"));
+			this.classifier = model.interpolate(getChildText(element, "classifier"));
+			this.optional = "true".equals(model.interpolate(getChildText(element, "optional")));
+			this.systemPath = model.interpolate(getChildText(element, "systemPath"));
+
+			for (Element exclusion : getChildren(getChild(element, "exclusions"), "exclusion"))
+				exclusions.add(getChildText(exclusion, "groupId") + ":" + getChildText(exclusion, "artifactId"));
+		}
+
+		private String getKey()
+		{
+			return groupId + ":" + artifactId;
+		}
+
+		/**
+		 * @return the key of the artifact, the jar, the test-jar and the classified jars of a project
+		 * are different artifacts on the classpath
+		 */
+		private String getArtifactKey()
+		{
+			return getKey() + ":" + ("test-jar".equals(type) ? "jar" : type) + ":" + getClassifier();
+		}
+
+		/**
+		 * @return the classifier of the jar, tests for a test-jar
+		 */
+		private String getClassifier()
+		{
+			if (classifier == null && "test-jar".equals(type))
+				return "tests";
+			return classifier;
+		}
+
+		private boolean excludes(Dependency dependency)
+		{
+			return exclusions.contains(dependency.getKey()) || exclusions.contains(dependency.groupId + ":*") || exclusions.contains("*:*");
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package fr.novia.zaproxyplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.zaproxy.clientapi.core.ApiResponse;
+import org.zaproxy.clientapi.core.ApiResponseFactory;
+import org.zaproxy.clientapi.core.ClientApi;
+import org.zaproxy.clientapi.core.ClientApiException;
+
+/**
+ * A {@link ClientApi} whose calls go through keep-alive HTTP connections to ZAP.
+ * All the generated API components (core, spider, ascan...) go through {@link #callApi} and
+ * {@link #callApiOther}, so this is the only place where ZAP is reached over HTTP.
+ *
+ * Each response is read until its end and its stream closed, so that the JDK keeps the connection
+ * open and reuses it for the next call. Calls have connect and read timeouts, and the number of
+ * calls in progress to one ZAP is limited to the size of the connection pool.
+ * Instances are shared by all the builds running in the same JVM.
+ */
+public class PooledClientApi extends ClientApi
+{
+	/**
+	 * Size of the idle connections cache of HttpURLConnection per host (5 unless the administrator set
+	 * http.maxConnections), more calls at the same time would open connections which aren't kept alive
+	 */
+	private static final int MAX_CONNECTIONS_PER_HOST = Integer.getInteger("http.maxConnections", 5);
+	private static final int CONNECT_TIMEOUT_IN_MS = 10000;
+	private static final int READ_TIMEOUT_IN_MS = 300000;
+	private static final int BUFFER_SIZE = 8192;
+	/** Number of characters of an error response kept in the exception message */
+	private static final int MAX_ERROR_LENGTH = 500;
+
+	private static final ConcurrentMap<String, PooledClientApi> instances = new ConcurrentHashMap<String, PooledClientApi>();
+
+	private final Proxy proxy;
+	private final Semaphore connections = new Semaphore(Math.max(1, MAX_CONNECTIONS_PER_HOST), true);
+
+	private final AtomicLong callCount = new AtomicLong();
+	private final AtomicLong callTimeInMs = new AtomicLong();
+
+	private PooledClientApi(String zapAddress, int zapPort)
+	{
+		super(zapAddress, zapPort);
+		this.proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(zapAddress, zapPort));
+	}
+
+	/**
+	 * @return the client shared by all the builds for this ZAP
+	 */
+	public static PooledClientApi getInstance(String zapAddress, int zapPort)
+	{
+		String key = zapAddress + ":" + zapPort;
+
+		PooledClientApi clientApi = instances.get(key);
+		if (clientApi == null)
+		{
+			instances.putIfAbsent(key, new PooledClientApi(zapAddress, zapPort));
+			clientApi = instances.get(key);
+		}
+
+		return clientApi;
+	}
+
+	@Override
+	public ApiResponse callApi(String component, String type, String method, Map<String, String> params) throws ClientApiException
+	{
+		byte[] response = call("xml", component, type, method, params);
+
+		Document dom;
+		try
+		{
+			dom = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(response));
+		}
+		catch (Exception e)
+		{
+			throw new ClientApiException(e);
+		}
+
+		return ApiResponseFactory.getResponse(dom.getFirstChild());
+	}
+
+	@Override
+	public byte[] callApiOther(String component, String type, String method, Map<String, String> params) throws ClientApiException
+	{
+		return call("other", component, type, method, params);
+	}
+
+	/**
+	 * Open a connection to the ZAP API through the pool. The caller must read the stream to its end
+	 * and close it, so that the connection goes back to the pool.
+	 *
+	 * @param format the response format (xml, json, other)
+	 * @return the stream of the response body
+	 * @throws IOException if ZAP answers with an HTTP error, its message starts with the error body
+	 */
+	public InputStream openStream(String format, String component, String type, String method, Map<String, String> params) throws IOException, InterruptedException
+	{
+		connections.acquire();
+
+		boolean opened = false;
+		try
+		{
+			HttpURLConnection connection = (HttpURLConnection)buildRequestUrl(format, component, type, method, params).openConnection(proxy);
+			connection.setConnectTimeout(CONNECT_TIMEOUT_IN_MS);
+			connection.setReadTimeout(READ_TIMEOUT_IN_MS);
+			connection.setUseCaches(false);
+
+			int responseCode = connection.getResponseCode();
+			if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST)
+				throw new IOException(String.format("ZAP API %s/%s/%s failed with HTTP %d: %s", component, type, method, responseCode, readError(connection)));
+
+			InputStream stream = connection.getInputStream();
+			if (stream == null)
+				stream = new ByteArrayInputStream(new byte[0]);
+
+			opened = true;
+			return new PooledInputStream(stream);
+		}
+		finally
+		{
+			if (!opened)
+				connections.release();
+		}
+	}
+
+	private byte[] call(String format, String component, String type, String method, Map<String, String> params) throws ClientApiException
+	{
+		long startTime = System.currentTimeMillis();
+
+		try
+		{
+			InputStream stream = openStream(format, component, type, method, params);
+			try
+			{
+				ByteArrayOutputStream response = new ByteArrayOutputStream();
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = stream.read(buffer)) != -1)
+					response.write(buffer, 0, read);
+
+				return response.toByteArray();
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new ClientApiException(e);
+		}
+		catch (IOException e)
+		{
+			throw new ClientApiException(e);
+		}
+		finally
+		{
+			callCount.incrementAndGet();
+			callTimeInMs.addAndGet(System.currentTimeMillis() - startTime);
+		}
+	}
+
+	/**
+	 * Read the error response to its end, so that the connection is kept alive.
+	 *
+	 * @return the start of the error response
+	 */
+	private static String readError(HttpURLConnection connection)
+	{
+		InputStream stream = connection.getErrorStream();
+		if (stream == null)
+			return "";
+
+		ByteArrayOutputStream error = new ByteArrayOutputStream();
+		try
+		{
+			try
+			{
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = stream.read(buffer)) != -1)
+				{
+					if (error.size() < MAX_ERROR_LENGTH)
+						error.write(buffer, 0, read);
+				}
+			}
+			finally
+			{
+				stream.close();
+			}
+
+			String message = new String(error.toByteArray(), "UTF-8");
+			return message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) : message;
+		}
+		catch (IOException e)
+		{
+			return e.getMessage();
+		}
+	}
+
+	private URL buildRequestUrl(String format, String component, String type, String method, Map<String, String> params) throws IOException
+	{
+		StringBuilder url = new StringBuilder();
+		url.append("http://zap/").append(format).append('/').append(component).append('/').append(type).append('/').append(method).append('/');
+
+		if (params != null && !params.isEmpty())
+		{
+			char separator = '?';
+			for (Map.Entry<String, String> param : params.entrySet())
+			{
+				if (param.getValue() == null)
+					continue;
+
+				url.append(separator).append(encode(param.getKey())).append('=').append(encode(param.getValue()));
+				separator = '&';
+			}
+		}
+
+		return new URL(url.toString());
+	}
+
+	private static String encode(String value) throws UnsupportedEncodingException
+	{
+		return URLEncoder.encode(value, "UTF-8");
+	}
+
+	/**
+	 * @return the number of API calls made through this client since its creation
+	 */
+	public long getCallCount()
+	{
+		return callCount.get();
+	}
+
+	/**
+	 * @return the total time spent in API calls made through this client since its creation
+	 */
+	public long getCallTimeInMs()
+	{
+		return callTimeInMs.get();
+	}
+
+	/**
+	 * Gives its connection back to the pool when closed.
+	 */
+	private class PooledInputStream extends InputStream
+	{
+		private final InputStream stream;
+		private boolean closed;
+
+		private PooledInputStream(InputStream stream)
+		{
+			this.stream = stream;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			return stream.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return stream.read(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (closed)
+				return;
+
+			closed = true;
+			try
+			{
+				stream.close();
+			}
+			finally
+			{
+				connections.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package fr.novia.zaproxyplugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import fr.novia.zaproxyplugin.asm.ModifyClassWriterFactory;
+
+/**
+ * Jars patched by {@link AutoProxy} to go through the proxy, kept between builds in the home directory
+ * of the user running the build. A patched jar is addressed by the hash of the source jar, the patched
+ * classes, the version of the class writers and the proxy: a build reuses it as long as none of them
+ * changed, without copying and rewriting the source jar.
+ * The key changes with the proxy, a new port giving new jars: the jars not used for
+ * {@link #MAX_UNUSED_DAYS} days are deleted when a jar is added.
+ */
+public class ProxyJarCache
+{
+	private static final String CACHE_DIR = ".zaproxy-plugin" + File.separator + "jars";
+	private static final int BUFFER_SIZE = 8192;
+	public static final int MAX_UNUSED_DAYS = 7;
+	private static final long MAX_UNUSED_MILLIS = MAX_UNUSED_DAYS * 24L * 60 * 60 * 1000;
+
+	// path of a source jar -> size, date and hash of its content, one entry per jar whatever its versions
+	private static final ConcurrentMap<String, JarHash> jarHashes = new ConcurrentHashMap<String, JarHash>();
+
+	private final File cacheDir;
+
+	public ProxyJarCache()
+	{
+		this(new File(System.getProperty("user.home"), CACHE_DIR));
+	}
+
+	public ProxyJarCache(File cacheDir)
+	{
+		this.cacheDir = cacheDir;
+	}
+
+	/**
+	 * @param classNames the classes patched in the jar
+	 * @return the key of the jar patched for the proxy
+	 */
+	public String getKey(String jarName, List<String> classNames, String proxy) throws IOException
+	{
+		List<String> sortedClassNames = new ArrayList<String>(classNames);
+		Collections.sort(sortedClassNames);
+
+		String key = getJarHash(new File(jarName)) + " " + sortedClassNames + " " + ModifyClassWriterFactory.WRITER_VERSION + " " + proxy;
+		return toHex(newDigest().digest(key.getBytes("UTF-8")));
+	}
+
+	/**
+	 * @return the patched jar in the cache, null if there is none
+	 */
+	public File get(String key, String jarName)
+	{
+		File cachedJar = getCachedJar(key, jarName);
+		if (!cachedJar.isFile())
+			return null;
+
+		// The date of the jar is the date it was last used, for the cleanup
+		cachedJar.setLastModified(System.currentTimeMillis());
+		return cachedJar;
+	}
+
+	/**
+	 * Copy a patched jar to the cache. The copy is renamed once complete, so that the builds
+	 * running at the same time never read a partial jar.
+	 */
+	public void put(String key, String jarName, File patchedJar) throws IOException
+	{
+		File cachedJar = getCachedJar(key, jarName);
+		if (cachedJar.isFile())
+			return;
+
+		cacheDir.mkdirs();
+		deleteUnusedJars();
+
+		File tempJar = File.createTempFile(key, ".tmp", cacheDir);
+		try
+		{
+			Files.copy(patchedJar.toPath(), tempJar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tempJar.toPath(), cachedJar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			// Another build put the same jar first (the move fails on Windows when the target exists)
+			if (!cachedJar.isFile())
+				throw e;
+		}
+		finally
+		{
+			tempJar.delete();
+		}
+	}
+
+	/**
+	 * Delete the jars, and the copies left by the builds which were stopped, not used for
+	 * {@link #MAX_UNUSED_DAYS} days. A jar used by a build running at the same time is copied
+	 * in its workspace, or patched again if it's already deleted.
+	 */
+	private void deleteUnusedJars()
+	{
+		File[] files = cacheDir.listFiles();
+		if (files == null)
+			return;
+
+		long oldest = System.currentTimeMillis() - MAX_UNUSED_MILLIS;
+		for (File file : files)
+			if (file.isFile() && file.lastModified() < oldest)
+				file.delete();
+	}
+
+	private File getCachedJar(String key, String jarName)
+	{
+		return new File(cacheDir, key + "-" + new File(jarName).getName());
+	}
+
+	/**
+	 * @return the hash of the content of the jar, computed once as long as the jar isn't changed
+	 */
+	private static String getJarHash(File jar) throws IOException
+	{
+		String jarPath = jar.getAbsolutePath();
+		long length = jar.length();
+		long lastModified = jar.lastModified();
+
+		JarHash jarHash = jarHashes.get(jarPath);
+		if (jarHash != null && jarHash.length == length && jarHash.lastModified == lastModified)
+			return jarHash.hash;
+
+		MessageDigest digest = newDigest();
+		InputStream in = new FileInputStream(jar);
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		}
+		finally
+		{
+			in.close();
+		}
+
+		String hash = toHex(digest.digest());
+		jarHashes.put(jarPath, new JarHash(length, lastModified, hash));
+		return hash;
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every JVM has SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes)
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+
+	private static class JarHash
+	{
+		private final long length;
+		private final long lastModified;
+		private final String hash;
+
+		private JarHash(long length, long lastModified, String hash)
+		{
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+}
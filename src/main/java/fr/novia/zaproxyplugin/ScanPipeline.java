@@ -0,0 +1,312 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.model.BuildListener;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.zaproxy.clientapi.core.ClientApi;
+import org.zaproxy.clientapi.core.ClientApiException;
+
+/**
+ * Moves every target through spider, ajax spider and active scan on its own schedule.
+ * A target is handed to the next stage as soon as its previous stage is finished, so crawling
+ * and scanning of different targets overlap.
+ * Spiders and active scans are limited to maxInFlight at the same time, the ajax spider of ZAP
+ * can only run one crawl at a time. Active scans can also be limited to a number of hosts at the same time,
+ * not to overload an environment shared by several sites.
+ * All running scans are followed through a single {@link ZAPStatusPoller}.
+ * With an alert reader, the alerts are read while the scans are running, and all the scans are
+ * stopped as soon as the quality gate fails. All the scans are also stopped at the deadline of a time budget,
+ * and when the thread of the pipeline is interrupted: the scans would go on running in ZAP.
+ */
+public class ScanPipeline
+{
+	private static final Pattern HOST_PATTERN = Pattern.compile("://([^/?# ]+)");
+
+	public enum Stage
+	{
+		SPIDER, AJAX_SPIDER, ACTIVE_SCAN, DONE
+	}
+
+	/**
+	 * Starts the ZAP scans of one target.
+	 */
+	public interface ScanLauncher
+	{
+		/** @return the id of the spider scan */
+		String startSpider(String url) throws ClientApiException;
+
+		void startAjaxSpider(String url) throws ClientApiException;
+
+		/** @return the id of the active scan */
+		String startActiveScan(String url) throws ClientApiException;
+
+		/** Stop all the running spiders and scans */
+		void stopAll() throws ClientApiException;
+	}
+
+	private final BuildListener listener;
+	private final int maxInFlight;
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final ScanLauncher scanLauncher;
+	private final ZAPStatusPoller poller;
+	private int maxHosts;
+	private long deadline;
+	private final List<String> finishedTargets = new ArrayList<String>();
+	private ZAPAlertReader alertReader;
+	private ZAPQualityGate qualityGate;
+
+	public ScanPipeline(ClientApi zapClientAPI, BuildListener listener, int maxInFlight, boolean spider, boolean ajaxSpider, boolean activeScan, ScanLauncher scanLauncher)
+	{
+		this.listener = listener;
+		this.maxInFlight = maxInFlight < 1 ? 1 : maxInFlight;
+		this.scanLauncher = scanLauncher;
+		this.poller = new ZAPStatusPoller(zapClientAPI, listener);
+
+		if (spider)
+			stages.add(Stage.SPIDER);
+		if (ajaxSpider)
+			stages.add(Stage.AJAX_SPIDER);
+		if (activeScan)
+			stages.add(Stage.ACTIVE_SCAN);
+		stages.add(Stage.DONE);
+	}
+
+	/**
+	 * @param maxHosts the maximum number of hosts actively scanned at the same time, 0 for no limit
+	 */
+	public void setMaxHosts(int maxHosts)
+	{
+		this.maxHosts = maxHosts;
+	}
+
+	/**
+	 * @param deadline the time when all the scans are stopped, 0 for no limit
+	 */
+	public void setDeadline(long deadline)
+	{
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @return the urls which went through all the stages, in the order they finished
+	 */
+	public List<String> getFinishedTargets()
+	{
+		return finishedTargets;
+	}
+
+	public void setAlertReader(ZAPAlertReader alertReader, ZAPQualityGate qualityGate)
+	{
+		this.alertReader = alertReader;
+		this.qualityGate = qualityGate;
+	}
+
+	/**
+	 * @return false if the scans were stopped before the end
+	 */
+	public boolean run(List<String> urls) throws ClientApiException, InterruptedException
+	{
+		List<ScanTarget> targets = new ArrayList<ScanTarget>();
+		for (String url : urls)
+		{
+			targets.add(new ScanTarget(url, stages.get(0)));
+			if (stages.get(0) == Stage.DONE)
+				finishedTargets.add(url);
+		}
+
+		listener.getLogger().println(String.format("Process %d site(s) through %s, %d at a time", urls.size(), stages, maxInFlight));
+
+		try
+		{
+			return runTargets(targets);
+		}
+		catch (InterruptedException e)
+		{
+			stopAllOnInterrupt();
+			throw e;
+		}
+		catch (ClientApiException e)
+		{
+			// Interrupted during a call to ZAP, the interrupt is cleared for the calls stopping the scans
+			if (Thread.interrupted())
+			{
+				stopAllOnInterrupt();
+				Thread.currentThread().interrupt();
+			}
+			throw e;
+		}
+	}
+
+	private boolean runTargets(List<ScanTarget> targets) throws ClientApiException, InterruptedException
+	{
+		while (!isDone(targets))
+		{
+			if (deadline > 0 && System.currentTimeMillis() >= deadline)
+			{
+				listener.getLogger().println("Time budget spent, stop all the scans");
+				scanLauncher.stopAll();
+				return false;
+			}
+
+			startWaitingTargets(targets);
+			poller.waitAndPoll();
+
+			if (alertReader != null)
+			{
+				if (alertReader.readNewAlerts(false) > 0)
+					listener.getLogger().println("Alerts read = " + alertReader.getIndex());
+
+				// Checked even without new alerts here, the index may be shared with the pipelines of other ZAP nodes
+				String failure = qualityGate == null ? null : qualityGate.check(alertReader.getIndex());
+				if (failure != null)
+				{
+					listener.getLogger().println("Quality gate failed (" + failure + "), stop all the scans");
+					scanLauncher.stopAll();
+					return false;
+				}
+			}
+		}
+
+		listener.getLogger().println(String.format("ZAP status polled %d time(s)", poller.getTicks()));
+		return true;
+	}
+
+	private void stopAllOnInterrupt()
+	{
+		listener.getLogger().println("Interrupted, stop all the scans");
+		try
+		{
+			scanLauncher.stopAll();
+		}
+		catch (ClientApiException e)
+		{
+			listener.getLogger().println("Scans not stopped: " + e.getMessage());
+		}
+	}
+
+	private void startWaitingTargets(List<ScanTarget> targets) throws ClientApiException
+	{
+		for (ScanTarget target : targets)
+		{
+			if (target.running || target.stage == Stage.DONE)
+				continue;
+
+			switch (target.stage)
+			{
+			case SPIDER:
+				if (countRunning(targets, Stage.SPIDER) >= maxInFlight)
+					continue;
+				poller.watchSpider(scanLauncher.startSpider(target.url), target);
+				break;
+			case AJAX_SPIDER:
+				if (countRunning(targets, Stage.AJAX_SPIDER) >= 1)
+					continue;
+				scanLauncher.startAjaxSpider(target.url);
+				poller.watchAjaxSpider(target);
+				break;
+			case ACTIVE_SCAN:
+				if (countRunning(targets, Stage.ACTIVE_SCAN) >= maxInFlight || !isHostAvailable(targets, target))
+					continue;
+				poller.watchActiveScan(scanLauncher.startActiveScan(target.url), target);
+				break;
+			default:
+				continue;
+			}
+
+			target.running = true;
+			listener.getLogger().println(String.format("Start %s of the site [%s]", target.stage, target.url));
+		}
+	}
+
+	private int countRunning(List<ScanTarget> targets, Stage stage)
+	{
+		int count = 0;
+		for (ScanTarget target : targets)
+		{
+			if (target.running && target.stage == stage)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if the host of the target is already scanned, or if one more host can be scanned
+	 */
+	private boolean isHostAvailable(List<ScanTarget> targets, ScanTarget target)
+	{
+		if (maxHosts <= 0)
+			return true;
+
+		Set<String> scannedHosts = new HashSet<String>();
+		for (ScanTarget other : targets)
+		{
+			if (other.running && other.stage == Stage.ACTIVE_SCAN)
+				scannedHosts.add(getHost(other.url));
+		}
+
+		return scannedHosts.contains(getHost(target.url)) || scannedHosts.size() < maxHosts;
+	}
+
+	/**
+	 * @return the host and port of an url, or of the url in an endpoint key
+	 */
+	private static String getHost(String url)
+	{
+		Matcher matcher = HOST_PATTERN.matcher(url);
+		return matcher.find() ? matcher.group(1).toLowerCase() : url;
+	}
+
+	private boolean isDone(List<ScanTarget> targets)
+	{
+		for (ScanTarget target : targets)
+		{
+			if (target.stage != Stage.DONE)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A target url and the stage it's in. Receives the state changes of its running stage.
+	 */
+	private class ScanTarget implements ZAPStatusPoller.ScanWatcher
+	{
+		private final String url;
+		private Stage stage;
+		private boolean running;
+		private String lastProgress;
+
+		private ScanTarget(String url, Stage stage)
+		{
+			this.url = url;
+			this.stage = stage;
+		}
+
+		@Override
+		public void onProgress(String progress)
+		{
+			if (progress.equals(lastProgress))
+				return;
+
+			listener.getLogger().println(String.format("Status %s [%s] = %s", stage, url, progress));
+			lastProgress = progress;
+		}
+
+		@Override
+		public void onFinished()
+		{
+			listener.getLogger().println(String.format("Finish %s of the site [%s]", stage, url));
+			running = false;
+			lastProgress = null;
+			stage = stages.get(stages.indexOf(stage) + 1);
+			if (stage == Stage.DONE)
+				finishedTargets.add(url);
+		}
+	}
+}
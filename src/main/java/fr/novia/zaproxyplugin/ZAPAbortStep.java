@@ -0,0 +1,77 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.google.inject.Inject;
+
+/**
+ * Pipeline step cancelling a scan started by the zapStart step. The spiders and scans of the
+ * scan are stopped, the step doesn't fail if the scan already ended.
+ */
+public class ZAPAbortStep extends AbstractStepImpl
+{
+	private final String name;
+
+	@DataBoundConstructor
+	public ZAPAbortStep(String name)
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return ZAPStartStep.getName(name);
+	}
+
+	@Extension(optional = true)
+	public static class DescriptorImpl extends AbstractStepDescriptorImpl
+	{
+		public DescriptorImpl()
+		{
+			super(Execution.class);
+		}
+
+		@Override
+		public String getFunctionName()
+		{
+			return "zapAbort";
+		}
+
+		@Override
+		public String getDisplayName()
+		{
+			return "Abort a ZAProxy scan";
+		}
+	}
+
+	public static class Execution extends AbstractSynchronousStepExecution<Void>
+	{
+		private static final long serialVersionUID = 7425571389260394415L;
+
+		@Inject(optional = true)
+		private transient ZAPAbortStep step;
+		@StepContextParameter
+		private transient Run<?, ?> run;
+		@StepContextParameter
+		private transient TaskListener listener;
+
+		@Override
+		protected Void run() throws Exception
+		{
+			ZAPScanRegistry.Scan scan = ZAPScanRegistry.getInstance().remove(run, step.getName());
+			if (scan == null || !scan.cancel(listener))
+				listener.getLogger().println("No running ZAProxy scan named [" + step.getName() + "]");
+			else
+				listener.getLogger().println("ZAProxy scan [" + step.getName() + "] aborted");
+			return null;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package fr.novia.zaproxyplugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Running count of the alerts raised by ZAP, by risk, by plugin and by URL.
+ * Filled by a {@link ZAPAlertReader} while the scans are running.
+ */
+public class ZAPAlertIndex
+{
+	public static final String RISK_HIGH = "High";
+	public static final String RISK_MEDIUM = "Medium";
+	public static final String RISK_LOW = "Low";
+	public static final String RISK_INFORMATIONAL = "Informational";
+
+	private final Map<String, Integer> countByRisk = new HashMap<String, Integer>();
+	private final Map<String, Integer> countByPlugin = new HashMap<String, Integer>();
+	private final Map<String, Integer> countByUrl = new HashMap<String, Integer>();
+	private final List<Alert> alerts = new ArrayList<Alert>();
+	// plugin id + url of the alerts
+	private final Set<String> alertKeys = new HashSet<String>();
+	private int total;
+
+	public synchronized void add(String risk, String pluginId, String url)
+	{
+		increment(countByRisk, risk);
+		increment(countByPlugin, pluginId);
+		increment(countByUrl, url);
+		alerts.add(new Alert(risk, pluginId, url));
+		alertKeys.add(pluginId + " " + url);
+		total++;
+	}
+
+	/**
+	 * @return true if the plugin raised an alert for the url
+	 */
+	public synchronized boolean contains(String pluginId, String url)
+	{
+		return alertKeys.contains(pluginId + " " + url);
+	}
+
+	public synchronized List<Alert> getAlerts()
+	{
+		return new ArrayList<Alert>(alerts);
+	}
+
+	public synchronized int getCount(String risk)
+	{
+		Integer count = countByRisk.get(risk);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * @return the number of alerts by plugin id
+	 */
+	public synchronized Map<String, Integer> getCountByPlugin()
+	{
+		return new HashMap<String, Integer>(countByPlugin);
+	}
+
+	/**
+	 * @return the number of alerts by URL
+	 */
+	public synchronized Map<String, Integer> getCountByUrl()
+	{
+		return new HashMap<String, Integer>(countByUrl);
+	}
+
+	public synchronized int getTotal()
+	{
+		return total;
+	}
+
+	private static void increment(Map<String, Integer> counts, String key)
+	{
+		Integer count = counts.get(key);
+		counts.put(key, count == null ? 1 : count + 1);
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("%s=%d, %s=%d, %s=%d, %s=%d", RISK_HIGH, getCount(RISK_HIGH), RISK_MEDIUM, getCount(RISK_MEDIUM),
+				RISK_LOW, getCount(RISK_LOW), RISK_INFORMATIONAL, getCount(RISK_INFORMATIONAL));
+	}
+
+	/**
+	 * One alert, with only what the index is keyed by.
+	 */
+	public static class Alert
+	{
+		private final String risk;
+		private final String pluginId;
+		private final String url;
+
+		public Alert(String risk, String pluginId, String url)
+		{
+			this.risk = risk;
+			this.pluginId = pluginId;
+			this.url = url;
+		}
+
+		public String getRisk()
+		{
+			return risk;
+		}
+
+		public String getPluginId()
+		{
+			return pluginId;
+		}
+
+		public String getUrl()
+		{
+			return url;
+		}
+	}
+}
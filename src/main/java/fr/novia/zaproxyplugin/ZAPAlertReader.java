@@ -0,0 +1,71 @@
+package fr.novia.zaproxyplugin;
+
+import org.zaproxy.clientapi.core.ApiResponse;
+import org.zaproxy.clientapi.core.ApiResponseList;
+import org.zaproxy.clientapi.core.ApiResponseSet;
+import org.zaproxy.clientapi.core.ClientApi;
+import org.zaproxy.clientapi.core.ClientApiException;
+
+/**
+ * Reads the alerts of ZAP page by page while the scans are running, and adds them to a {@link ZAPAlertIndex}.
+ * ZAP lists the alerts in the order they were raised, so each read starts after the last alert
+ * already read and only new alerts are transferred.
+ */
+public class ZAPAlertReader
+{
+	private static final int PAGE_SIZE = 200;
+
+	/** Reads are skipped when the previous one is more recent, the scans don't raise alerts that often */
+	private static final int MIN_READ_INTERVAL_IN_MS = 1000;
+
+	private final ClientApi zapClientAPI;
+	private final ZAPAlertIndex index;
+
+	private int nextStart;
+	private long lastReadTime;
+
+	public ZAPAlertReader(ClientApi zapClientAPI, ZAPAlertIndex index)
+	{
+		this.zapClientAPI = zapClientAPI;
+		this.index = index;
+	}
+
+	/**
+	 * Read the alerts raised since the previous read.
+	 *
+	 * @param force read even if the previous read is recent
+	 * @return the number of new alerts
+	 */
+	public int readNewAlerts(boolean force) throws ClientApiException
+	{
+		long now = System.currentTimeMillis();
+		if (!force && now - lastReadTime < MIN_READ_INTERVAL_IN_MS)
+			return 0;
+		lastReadTime = now;
+
+		int read = 0;
+		int pageSize;
+		do
+		{
+			ApiResponse page = zapClientAPI.core.alerts("", String.valueOf(nextStart), String.valueOf(PAGE_SIZE));
+			pageSize = ((ApiResponseList)page).getItems().size();
+
+			for (ApiResponse item : ((ApiResponseList)page).getItems())
+			{
+				ApiResponseSet alert = (ApiResponseSet)item;
+				index.add(alert.getAttribute("risk"), alert.getAttribute("pluginId"), alert.getAttribute("url"));
+			}
+
+			nextStart += pageSize;
+			read += pageSize;
+		}
+		while (pageSize == PAGE_SIZE);
+
+		return read;
+	}
+
+	public ZAPAlertIndex getIndex()
+	{
+		return index;
+	}
+}
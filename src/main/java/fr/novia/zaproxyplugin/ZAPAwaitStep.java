@@ -0,0 +1,147 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.google.inject.Inject;
+
+/**
+ * Pipeline step waiting for the end of a scan started by the zapStart step, without holding an executor.
+ * The step fails if the scan failed (e.g. the quality gate was exceeded) or was cancelled.
+ */
+public class ZAPAwaitStep extends AbstractStepImpl
+{
+	private final String name;
+
+	@DataBoundConstructor
+	public ZAPAwaitStep(String name)
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return ZAPStartStep.getName(name);
+	}
+
+	@Extension(optional = true)
+	public static class DescriptorImpl extends AbstractStepDescriptorImpl
+	{
+		public DescriptorImpl()
+		{
+			super(Execution.class);
+		}
+
+		@Override
+		public String getFunctionName()
+		{
+			return "zapAwait";
+		}
+
+		@Override
+		public String getDisplayName()
+		{
+			return "Wait for a ZAProxy scan";
+		}
+	}
+
+	public static class Execution extends AbstractStepExecutionImpl
+	{
+		private static final long serialVersionUID = -6474030591322640977L;
+
+		@Inject(optional = true)
+		private transient ZAPAwaitStep step;
+		@StepContextParameter
+		private transient Run<?, ?> run;
+		@StepContextParameter
+		private transient TaskListener listener;
+
+		private transient Future<?> waiter;
+		// Kept when Jenkins restarts, unlike the step
+		private String name;
+
+		@Override
+		public boolean start() throws Exception
+		{
+			final String name = step.getName();
+			this.name = name;
+			ZAPScanRegistry.Scan registered = ZAPScanRegistry.getInstance().get(run, name);
+			if (registered == null)
+				throw new AbortException("No ZAProxy scan named [" + name + "] was started by this build");
+
+			listener.getLogger().println("Wait for the ZAProxy scan [" + name + "]");
+			final Future<Boolean> scan = registered.getFuture();
+
+			// Only a pooled thread waits, the step returns at once
+			waiter = Computer.threadPoolForRemoting.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						boolean success = scan.get();
+						if (success)
+							getContext().onSuccess(true);
+						else
+							getContext().onFailure(new AbortException("ZAProxy scan [" + name + "] failed"));
+					}
+					catch (CancellationException e)
+					{
+						getContext().onFailure(new AbortException("ZAProxy scan [" + name + "] cancelled"));
+					}
+					catch (ExecutionException e)
+					{
+						getContext().onFailure(e.getCause());
+					}
+					catch (InterruptedException e)
+					{
+						// Stopped, the context is already completed
+					}
+					finally
+					{
+						ZAPScanRegistry.getInstance().remove(run, name);
+					}
+				}
+			});
+
+			return false;
+		}
+
+		@Override
+		public void stop(Throwable cause) throws Exception
+		{
+			// The scans are stopped in ZAP too, no scan is registered anymore once Jenkins restarted
+			if (run != null)
+			{
+				ZAPScanRegistry.Scan scan = ZAPScanRegistry.getInstance().remove(run, name);
+				if (scan != null)
+					scan.cancel(listener);
+			}
+			if (waiter != null)
+				waiter.cancel(true);
+
+			getContext().onFailure(cause);
+		}
+
+		@Override
+		public void onResume()
+		{
+			// The scan ran in the Jenkins which stopped, nothing will complete the step
+			getContext().onFailure(new AbortException("ZAProxy scan [" + name + "] lost when Jenkins restarted"));
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath.FileCallable;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.InvisibleAction;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.remoting.RoleChecker;
+
+/**
+ * ZAP daemons started on the build nodes and kept running between builds, so that a build doesn't
+ * pay the ZAP startup time. A build leases an idle daemon of its node (or starts a new one while the
+ * node has less than the pool size), and the daemon goes back to the pool when the build is completed.
+ *
+ * The daemons of a node listen on the default ZAP port and the following free ones. The session of a
+ * daemon is reset each time it's leased, and a daemon which doesn't answer anymore is killed and replaced.
+ */
+public class ZAPDaemonPool
+{
+	private static final ZAPDaemonPool uniqueInstance = new ZAPDaemonPool();
+
+	/** Time a build waits for a daemon of its node before it fails */
+	private static final int LEASE_TIMEOUT_IN_MINUTES = 60;
+	/** Number of ports tried after the base port for a new daemon */
+	private static final int MAX_PORT_ATTEMPTS = 100;
+
+	// node name -> daemons started on this node
+	private final Map<String, List<Daemon>> daemonsByNode = new HashMap<String, List<Daemon>>();
+
+	private ZAPDaemonPool()
+	{
+	}
+
+	public static ZAPDaemonPool getInstance()
+	{
+		return uniqueInstance;
+	}
+
+	/**
+	 * Lease a ZAP daemon of the build node, and point the ZAProxy of the build at it. Waits for a daemon to be returned
+	 * if all the daemons of the node are leased and the pool is full.
+	 *
+	 * @throws AbortException if no daemon was returned in time, or no port is free for a new daemon
+	 *
+	 * @param zaproxy the ZAProxy of the build, not the one of the job shared by its builds
+	 * @param poolSize the maximum number of daemons on one node
+	 * @param basePort the port of the first daemon of a node
+	 */
+	public void lease(AbstractBuild<?, ?> build, BuildListener listener, Launcher launcher, ZAProxy zaproxy, int poolSize, int basePort)
+			throws IOException, InterruptedException
+	{
+		String nodeName = build.getBuiltOnStr();
+		long deadline = System.currentTimeMillis() + LEASE_TIMEOUT_IN_MINUTES * 60 * 1000L;
+		boolean waiting = false;
+
+		while (true)
+		{
+			Daemon daemon = null;
+			boolean start = false;
+
+			synchronized (this)
+			{
+				List<Daemon> daemons = getDaemons(nodeName);
+				for (Daemon idle : daemons)
+				{
+					if (!idle.leased)
+					{
+						daemon = idle;
+						break;
+					}
+				}
+
+				if (daemon == null && daemons.size() < poolSize)
+				{
+					daemon = new Daemon(getFreePort(build, zaproxy.getZapProxyHost(), daemons, basePort));
+					daemons.add(daemon);
+					start = true;
+				}
+
+				if (daemon == null)
+				{
+					long timeLeft = deadline - System.currentTimeMillis();
+					if (timeLeft <= 0)
+						throw new AbortException(String.format("No ZAP daemon of the node was returned to the pool in %d minutes", LEASE_TIMEOUT_IN_MINUTES));
+
+					if (!waiting)
+						listener.getLogger().println(String.format("All the %d ZAP daemon(s) of the node are leased, waiting for one", daemons.size()));
+					waiting = true;
+					wait(timeLeft);
+					continue;
+				}
+
+				daemon.leased = true;
+			}
+
+			zaproxy.setZapProxyPort(daemon.port);
+			zaproxy.setZapProxyLeased(true);
+
+			boolean ready = false;
+			try
+			{
+				if (start)
+				{
+					listener.getLogger().println(String.format("Start a new ZAP daemon on port %d for the pool", daemon.port));
+					daemon.proc = zaproxy.startZAP(build, listener, launcher, false);
+					ready = true;
+				}
+				else
+				{
+					ready = zaproxy.resetZAP(build, listener);
+					if (!ready)
+						listener.getLogger().println(String.format("ZAP daemon on port %d doesn't answer, killed and removed from the pool", daemon.port));
+				}
+			}
+			finally
+			{
+				if (!ready)
+					discard(nodeName, daemon, listener);
+			}
+
+			if (ready)
+			{
+				listener.getLogger().println(String.format("Lease ZAP daemon on port %d", daemon.port));
+				build.addAction(new Lease(nodeName, daemon.port));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Give the daemon leased by a build back to the pool.
+	 */
+	public synchronized void release(Lease lease)
+	{
+		for (Daemon daemon : getDaemons(lease.nodeName))
+		{
+			if (daemon.port == lease.port)
+				daemon.leased = false;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Kill the process of a daemon and remove it from the pool. Its port is only used again once it's free.
+	 */
+	private void discard(String nodeName, Daemon daemon, BuildListener listener)
+	{
+		if (daemon.proc != null)
+		{
+			try
+			{
+				daemon.proc.kill();
+			}
+			catch (IOException e)
+			{
+				listener.getLogger().println(String.format("ZAP daemon on port %d not killed: %s", daemon.port, e.getMessage()));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				listener.getLogger().println(String.format("ZAP daemon on port %d not killed: interrupted", daemon.port));
+			}
+		}
+
+		synchronized (this)
+		{
+			getDaemons(nodeName).remove(daemon);
+			notifyAll();
+		}
+	}
+
+	private List<Daemon> getDaemons(String nodeName)
+	{
+		List<Daemon> daemons = daemonsByNode.get(nodeName);
+		if (daemons == null)
+		{
+			daemons = new ArrayList<Daemon>();
+			daemonsByNode.put(nodeName, daemons);
+		}
+		return daemons;
+	}
+
+	/**
+	 * @return the first port from the base port which isn't the port of a daemon of the pool and
+	 * which no other process of the node listens on, e.g. a daemon which couldn't be killed.
+	 * The ports of a host which isn't the build node can't be probed from the node, only the ports
+	 * of the pool are skipped.
+	 */
+	private static int getFreePort(AbstractBuild<?, ?> build, String host, List<Daemon> daemons, int basePort)
+			throws IOException, InterruptedException
+	{
+		boolean probe = ZAPUtil.isLocalIP(host);
+		for (int port = basePort; port < basePort + MAX_PORT_ATTEMPTS; port++)
+		{
+			if (!isPoolPort(daemons, port) && (!probe || build.getWorkspace().act(new PortFreeCallable(host, port))))
+				return port;
+		}
+
+		throw new AbortException(String.format("No free port for a new ZAP daemon from port %d to %d", basePort, basePort + MAX_PORT_ATTEMPTS - 1));
+	}
+
+	private static boolean isPoolPort(List<Daemon> daemons, int port)
+	{
+		for (Daemon daemon : daemons)
+		{
+			if (daemon.port == port)
+				return true;
+		}
+		return false;
+	}
+
+	private static class Daemon
+	{
+		private final int port;
+		private boolean leased;
+		/** null if ZAP doesn't run on the build node */
+		private Proc proc;
+
+		private Daemon(int port)
+		{
+			this.port = port;
+		}
+	}
+
+	/**
+	 * The daemon leased by a build.
+	 */
+	public static class Lease extends InvisibleAction
+	{
+		private final String nodeName;
+		private final int port;
+		private transient boolean released;
+
+		public Lease(String nodeName, int port)
+		{
+			this.nodeName = nodeName;
+			this.port = port;
+		}
+
+		public int getPort()
+		{
+			return port;
+		}
+	}
+
+	/**
+	 * Checks on the build node that nothing listens on a port.
+	 */
+	private static class PortFreeCallable implements FileCallable<Boolean>
+	{
+		private static final long serialVersionUID = 6209481367035512941L;
+
+		private final String host;
+		private final int port;
+
+		private PortFreeCallable(String host, int port)
+		{
+			this.host = host;
+			this.port = port;
+		}
+
+		@Override
+		public Boolean invoke(File f, VirtualChannel channel)
+		{
+			ServerSocket socket = null;
+			try
+			{
+				socket = new ServerSocket();
+				socket.bind(new InetSocketAddress(host, port));
+				return true;
+			}
+			catch (IOException e)
+			{
+				return false;
+			}
+			finally
+			{
+				if (socket != null)
+				{
+					try
+					{
+						socket.close();
+					}
+					catch (IOException e)
+					{
+						// Nothing to do
+					}
+				}
+			}
+		}
+
+		@Override
+		public void checkRoles(RoleChecker checker) throws SecurityException
+		{
+			// Nothing to do
+		}
+	}
+
+	/**
+	 * Returns the daemon of a build to the pool when the build is completed, whatever its result.
+	 */
+	@Extension
+	public static class ReleaseOnCompletion extends RunListener<AbstractBuild<?, ?>>
+	{
+		@Override
+		public void onCompleted(AbstractBuild<?, ?> build, TaskListener listener)
+		{
+			Lease lease = build.getAction(Lease.class);
+			if (lease == null || lease.released)
+				return;
+
+			lease.released = true;
+			getInstance().release(lease);
+			listener.getLogger().println(String.format("Return ZAP daemon on port %d to the pool", lease.port));
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package fr.novia.zaproxyplugin;
+
+/**
+ * Maximum numbers of High, Medium and Low alerts accepted for a build. The gate is checked against
+ * the running {@link ZAPAlertIndex} while the scans are running, so that the scans can be stopped
+ * as soon as a limit is exceeded instead of at the end.
+ */
+public class ZAPQualityGate
+{
+	/** No limit for a risk */
+	public static final int NO_LIMIT = -1;
+
+	private final int maxHighAlerts;
+	private final int maxMediumAlerts;
+	private final int maxLowAlerts;
+
+	public ZAPQualityGate(int maxHighAlerts, int maxMediumAlerts, int maxLowAlerts)
+	{
+		this.maxHighAlerts = maxHighAlerts;
+		this.maxMediumAlerts = maxMediumAlerts;
+		this.maxLowAlerts = maxLowAlerts;
+	}
+
+	/**
+	 * @param limit a number of alerts, blank for no limit
+	 * @throws NumberFormatException if the limit isn't a number, the job configuration rejects it
+	 */
+	public static int parseLimit(String limit)
+	{
+		if (limit == null || limit.trim().length() == 0)
+			return NO_LIMIT;
+
+		return Integer.parseInt(limit.trim());
+	}
+
+	public boolean isEnabled()
+	{
+		return maxHighAlerts != NO_LIMIT || maxMediumAlerts != NO_LIMIT || maxLowAlerts != NO_LIMIT;
+	}
+
+	/**
+	 * @return why the gate fails, null if all the numbers of alerts are within the limits
+	 */
+	public String check(ZAPAlertIndex index)
+	{
+		String reason = check(index, ZAPAlertIndex.RISK_HIGH, maxHighAlerts);
+		if (reason == null)
+			reason = check(index, ZAPAlertIndex.RISK_MEDIUM, maxMediumAlerts);
+		if (reason == null)
+			reason = check(index, ZAPAlertIndex.RISK_LOW, maxLowAlerts);
+		return reason;
+	}
+
+	private static String check(ZAPAlertIndex index, String risk, int maxAlerts)
+	{
+		int count = index.getCount(risk);
+		if (maxAlerts == NO_LIMIT || count <= maxAlerts)
+			return null;
+
+		return String.format("%d %s alert(s) raised, %d accepted", count, risk, maxAlerts);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s<=%s, %s<=%s, %s<=%s", ZAPAlertIndex.RISK_HIGH, toString(maxHighAlerts), ZAPAlertIndex.RISK_MEDIUM,
+				toString(maxMediumAlerts), ZAPAlertIndex.RISK_LOW, toString(maxLowAlerts));
+	}
+
+	private static String toString(int maxAlerts)
+	{
+		return maxAlerts == NO_LIMIT ? "any" : String.valueOf(maxAlerts);
+	}
+}
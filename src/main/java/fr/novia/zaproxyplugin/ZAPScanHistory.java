@@ -0,0 +1,370 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.FilePath;
+import hudson.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.zaproxy.clientapi.core.ApiResponse;
+import org.zaproxy.clientapi.core.ApiResponseList;
+import org.zaproxy.clientapi.core.ApiResponseSet;
+import org.zaproxy.clientapi.core.ClientApi;
+import org.zaproxy.clientapi.core.ClientApiException;
+
+/**
+ * The endpoints found and the alerts raised by the previous build, saved in the workspace.
+ *
+ * An endpoint is a method, an url without its query and the names of its parameters, its fingerprint
+ * is a hash of the response ZAP recorded for it while crawling, without the parts of the response
+ * which change at each request (dates, numbers, tokens). Comparing the endpoints of the current
+ * crawl with the saved ones gives the endpoints which are new or whose response changed: only these
+ * need an active scan. The alerts of the previous build on the other endpoints are carried over.
+ */
+public class ZAPScanHistory
+{
+	private static final String HISTORY_DIR = ".zap";
+	private static final String FINGERPRINTS_FILE = "fingerprints.properties";
+	private static final String ALERTS_FILE = "alerts.properties";
+
+	/** Messages read at a time, each one comes with its whole response body */
+	private static final int PAGE_SIZE = 50;
+
+	private final FilePath historyDir;
+
+	// endpoint key -> fingerprint
+	private final Properties previousFingerprints = new Properties();
+	private final List<ZAPAlertIndex.Alert> previousAlerts = new ArrayList<ZAPAlertIndex.Alert>();
+
+	public ZAPScanHistory(FilePath workspace) throws IOException, InterruptedException
+	{
+		this.historyDir = workspace.child(HISTORY_DIR);
+
+		load(FINGERPRINTS_FILE, previousFingerprints);
+
+		Properties alerts = new Properties();
+		load(ALERTS_FILE, alerts);
+		for (String index : alerts.stringPropertyNames())
+		{
+			// risk pluginId url
+			String[] alert = alerts.getProperty(index).split(" ", 3);
+			if (alert.length == 3)
+				previousAlerts.add(new ZAPAlertIndex.Alert(alert[0], alert[1], alert[2]));
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		return previousFingerprints.isEmpty();
+	}
+
+	/**
+	 * Read the endpoints of all the messages ZAP recorded under the urls.
+	 *
+	 * @return the endpoints by key
+	 */
+	public static Map<String, Endpoint> readEndpoints(ClientApi zapClientAPI, List<String> urls) throws ClientApiException
+	{
+		Map<String, Endpoint> endpoints = new LinkedHashMap<String, Endpoint>();
+
+		for (String url : urls)
+		{
+			int start = 0;
+			int pageSize;
+			do
+			{
+				ApiResponse page = zapClientAPI.core.messages(url.trim(), String.valueOf(start), String.valueOf(PAGE_SIZE));
+				pageSize = ((ApiResponseList)page).getItems().size();
+
+				for (ApiResponse item : ((ApiResponseList)page).getItems())
+				{
+					Endpoint endpoint = Endpoint.fromMessage((ApiResponseSet)item);
+					if (endpoint != null && !endpoints.containsKey(endpoint.getKey()))
+						endpoints.put(endpoint.getKey(), endpoint);
+				}
+
+				start += pageSize;
+			}
+			while (pageSize == PAGE_SIZE);
+		}
+
+		return endpoints;
+	}
+
+	/**
+	 * @return the endpoints not found by the previous build or whose response changed since
+	 */
+	public Map<String, Endpoint> getChangedEndpoints(Map<String, Endpoint> endpoints)
+	{
+		Map<String, Endpoint> changed = new LinkedHashMap<String, Endpoint>();
+
+		for (Endpoint endpoint : endpoints.values())
+		{
+			if (!endpoint.getFingerprint().equals(previousFingerprints.getProperty(endpoint.getKey())))
+				changed.put(endpoint.getKey(), endpoint);
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Sort the endpoints by the value of scanning them: the endpoints unknown to the previous build
+	 * first, then the forms and POST requests, then the requests with parameters.
+	 *
+	 * @param history the history of the previous build, null if there is none
+	 * @return the keys of the endpoints, the most valuable first
+	 */
+	public static List<String> rankByPriority(final Map<String, Endpoint> endpoints, final ZAPScanHistory history)
+	{
+		List<String> keys = new ArrayList<String>(endpoints.keySet());
+
+		// Stable sort, endpoints of the same priority stay in the crawl order
+		Collections.sort(keys, new Comparator<String>()
+		{
+			@Override
+			public int compare(String key1, String key2)
+			{
+				return getPriority(endpoints.get(key2), history) - getPriority(endpoints.get(key1), history);
+			}
+		});
+
+		return keys;
+	}
+
+	private static int getPriority(Endpoint endpoint, ZAPScanHistory history)
+	{
+		int priority = 0;
+		if (history != null && !history.isEmpty() && !history.previousFingerprints.containsKey(endpoint.getKey()))
+			priority += 4;
+		if ("POST".equalsIgnoreCase(endpoint.getMethod()) || endpoint.isForm())
+			priority += 2;
+		if (endpoint.hasParameters())
+			priority += 1;
+		return priority;
+	}
+
+	/**
+	 * Add to the index the alerts of the previous build on the urls of the unchanged endpoints,
+	 * unless the same alert was raised again.
+	 *
+	 * @return the alerts carried over
+	 */
+	public List<ZAPAlertIndex.Alert> carryOverAlerts(ZAPAlertIndex index, Map<String, Endpoint> endpoints, Map<String, Endpoint> changedEndpoints)
+	{
+		Set<String> unchangedUrls = new HashSet<String>();
+		Set<String> changedUrls = new HashSet<String>();
+		for (Endpoint endpoint : endpoints.values())
+		{
+			if (changedEndpoints.containsKey(endpoint.getKey()))
+				changedUrls.add(endpoint.getBaseUrl());
+			else
+				unchangedUrls.add(endpoint.getBaseUrl());
+		}
+
+		List<ZAPAlertIndex.Alert> carried = new ArrayList<ZAPAlertIndex.Alert>();
+		for (ZAPAlertIndex.Alert alert : previousAlerts)
+		{
+			String baseUrl = Endpoint.getBaseUrl(alert.getUrl());
+			if (!unchangedUrls.contains(baseUrl) || changedUrls.contains(baseUrl) || index.contains(alert.getPluginId(), alert.getUrl()))
+				continue;
+
+			index.add(alert.getRisk(), alert.getPluginId(), alert.getUrl());
+			carried.add(alert);
+		}
+
+		return carried;
+	}
+
+	/**
+	 * Save the endpoints and the alerts of this build for the next one.
+	 */
+	public void save(Map<String, Endpoint> endpoints, ZAPAlertIndex index) throws IOException, InterruptedException
+	{
+		Properties fingerprints = new Properties();
+		for (Endpoint endpoint : endpoints.values())
+			fingerprints.setProperty(endpoint.getKey(), endpoint.getFingerprint());
+
+		Properties alerts = new Properties();
+		int i = 0;
+		for (ZAPAlertIndex.Alert alert : index.getAlerts())
+			alerts.setProperty(String.valueOf(i++), alert.getRisk() + " " + alert.getPluginId() + " " + alert.getUrl());
+
+		historyDir.mkdirs();
+		store(FINGERPRINTS_FILE, fingerprints);
+		store(ALERTS_FILE, alerts);
+	}
+
+	private void load(String fileName, Properties properties) throws IOException, InterruptedException
+	{
+		FilePath file = historyDir.child(fileName);
+		if (!file.exists())
+			return;
+
+		InputStream in = file.read();
+		try
+		{
+			properties.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private void store(String fileName, Properties properties) throws IOException, InterruptedException
+	{
+		OutputStream out = historyDir.child(fileName).write();
+		try
+		{
+			properties.store(out, "ZAProxy plugin scan history");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * A request of the site, whatever the values of its parameters.
+	 */
+	public static class Endpoint
+	{
+		/**
+		 * Parts of a response which change from a request to another while the page doesn't: the hidden
+		 * fields named like a CSRF token or a nonce, the dates (ISO 8601 and HTTP), the times and the
+		 * Unix timestamps. The other numbers and the other hidden fields are content, a change of them
+		 * is a change of the page.
+		 */
+		private static final Pattern VOLATILE_CONTENT = Pattern.compile("(?i)"
+				+ "<input(?=[^>]*type\\s*=\\s*[\"']?hidden)(?=[^>]*name\\s*=\\s*[\"']?[\\w.:-]*(?:csrf|xsrf|token|nonce))[^>]*>"
+				+ "|\\b\\d{4}-\\d{2}-\\d{2}(?:[T ]\\d{2}:\\d{2}(?::\\d{2}(?:[.,]\\d+)?)?(?:Z|[+-]\\d{2}:?\\d{2})?)?"
+				+ "|\\b(?:mon|tue|wed|thu|fri|sat|sun), \\d{2} [a-z]{3} \\d{4} \\d{2}:\\d{2}:\\d{2} gmt"
+				+ "|\\b\\d{1,2}:\\d{2}(?::\\d{2})?\\b"
+				+ "|\\b1\\d{9}(?:\\d{3})?\\b");
+
+		private final String method;
+		private final String url;
+		private final String baseUrl;
+		private final String parameterNames;
+		private final boolean hasParameters;
+		private final boolean form;
+		private final String postData;
+		private final String fingerprint;
+
+		private Endpoint(String method, String url, Set<String> parameterNames, boolean form, String postData, String fingerprint)
+		{
+			this.method = method;
+			this.url = url;
+			this.baseUrl = getBaseUrl(url);
+			this.parameterNames = parameterNames.toString();
+			this.hasParameters = !parameterNames.isEmpty();
+			this.form = form;
+			this.postData = postData;
+			this.fingerprint = fingerprint;
+		}
+
+		/**
+		 * @return the endpoint of a message listed by core.messages, null if its request line can't be read
+		 */
+		private static Endpoint fromMessage(ApiResponseSet message)
+		{
+			String requestHeader = message.getAttribute("requestHeader");
+			if (requestHeader == null)
+				return null;
+
+			// GET http://host/path?query HTTP/1.1
+			String[] requestLine = requestHeader.split("\r?\n", 2)[0].split(" ");
+			if (requestLine.length < 2)
+				return null;
+
+			String url = requestLine[1];
+			String postData = message.getAttribute("requestBody") == null ? "" : message.getAttribute("requestBody");
+
+			Set<String> parameterNames = new TreeSet<String>();
+			if (url.indexOf('?') != -1)
+				addParameterNames(parameterNames, url.substring(url.indexOf('?') + 1));
+			boolean form = requestHeader.toLowerCase().contains("application/x-www-form-urlencoded") || requestHeader.toLowerCase().contains("multipart/form-data");
+			if (requestHeader.toLowerCase().contains("application/x-www-form-urlencoded"))
+				addParameterNames(parameterNames, postData);
+
+			String responseHeader = message.getAttribute("responseHeader") == null ? "" : message.getAttribute("responseHeader");
+			String responseBody = message.getAttribute("responseBody") == null ? "" : message.getAttribute("responseBody");
+			// Only the status line of the response header, the other headers change with the date
+			String fingerprint = Util.getDigestOf(responseHeader.split("\r?\n", 2)[0] + "\n" + VOLATILE_CONTENT.matcher(responseBody).replaceAll(" "));
+
+			return new Endpoint(requestLine[0], url, parameterNames, form, postData, fingerprint);
+		}
+
+		private static void addParameterNames(Set<String> parameterNames, String parameters)
+		{
+			for (String parameter : Arrays.asList(parameters.split("&")))
+			{
+				String name = parameter.split("=", 2)[0];
+				if (name.length() > 0)
+					parameterNames.add(name);
+			}
+		}
+
+		private static String getBaseUrl(String url)
+		{
+			int queryIndex = url.indexOf('?');
+			return queryIndex == -1 ? url : url.substring(0, queryIndex);
+		}
+
+		public String getKey()
+		{
+			return method + " " + baseUrl + " " + parameterNames;
+		}
+
+		public String getMethod()
+		{
+			return method;
+		}
+
+		public String getUrl()
+		{
+			return url;
+		}
+
+		public String getBaseUrl()
+		{
+			return baseUrl;
+		}
+
+		public boolean hasParameters()
+		{
+			return hasParameters;
+		}
+
+		/**
+		 * @return true if the request posts a form
+		 */
+		public boolean isForm()
+		{
+			return form;
+		}
+
+		public String getPostData()
+		{
+			return postData;
+		}
+
+		public String getFingerprint()
+		{
+			return fingerprint;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.model.BuildListener;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.zaproxy.clientapi.core.ApiResponseElement;
+import org.zaproxy.clientapi.core.ClientApi;
+import org.zaproxy.clientapi.core.ClientApiException;
+
+/**
+ * Options of the active scanner of a ZAP changed by a build, with their values before the build.
+ * The options are global to ZAP and a new session doesn't reset them, while a ZAP can be used by the
+ * builds of several jobs (pooled daemons, zapStart step, distributed nodes): the build restores them
+ * when it ends.
+ */
+public class ZAPScanOptions
+{
+	private final ClientApi zapClientAPI;
+	private final String apikey;
+	// option (e.g. ThreadPerHost) -> value before the build
+	private final Map<String, String> previousValues = new LinkedHashMap<String, String>();
+
+	public ZAPScanOptions(ClientApi zapClientAPI, String apikey)
+	{
+		this.zapClientAPI = zapClientAPI;
+		this.apikey = apikey;
+	}
+
+	/**
+	 * @param option the name of the option in the API, without its setOption/option prefix
+	 */
+	public int get(String option) throws ClientApiException
+	{
+		String value = ((ApiResponseElement)zapClientAPI.callApi("ascan", "view", "option" + option, new HashMap<String, String>())).getValue();
+		return Integer.parseInt(value);
+	}
+
+	/**
+	 * Set an option, its value before the build is read the first time it's set.
+	 *
+	 * @param option the name of the option in the API, without its setOption/option prefix
+	 */
+	public void set(String option, int value) throws ClientApiException
+	{
+		if (!previousValues.containsKey(option))
+			previousValues.put(option, String.valueOf(get(option)));
+
+		ZAPScanProfile.call(zapClientAPI, apikey, "setOption" + option, "Integer", String.valueOf(value));
+	}
+
+	/**
+	 * Give the options set by the build their values before the build. An option which can't be
+	 * restored is logged, the build goes on.
+	 */
+	public void restore(BuildListener listener)
+	{
+		for (Map.Entry<String, String> previousValue : previousValues.entrySet())
+		{
+			try
+			{
+				ZAPScanProfile.call(zapClientAPI, apikey, "setOption" + previousValue.getKey(), "Integer", previousValue.getValue());
+			}
+			catch (ClientApiException e)
+			{
+				listener.getLogger().println("Scan option " + previousValue.getKey() + " not restored: " + e.getMessage());
+			}
+		}
+
+		previousValues.clear();
+	}
+}
@@ -0,0 +1,171 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.FilePath;
+import hudson.model.BuildListener;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.zaproxy.clientapi.core.ApiResponse;
+import org.zaproxy.clientapi.core.ApiResponseList;
+import org.zaproxy.clientapi.core.ApiResponseSet;
+import org.zaproxy.clientapi.core.ClientApi;
+import org.zaproxy.clientapi.core.ClientApiException;
+
+/**
+ * Scan policies trading the depth of the active scan for its duration, created in ZAP through the API.
+ * A profile sets the attack strength and the alert threshold of all the scanners, turns off or tunes
+ * some scanners, and sets the number of threads per host and the delay between requests.
+ *
+ * A policy file named after the profile in the policies directory of the workspace
+ * (e.g. policies/FAST.policy) is imported instead, to tune a profile without changing the plugin.
+ * The policy in the file must have the name of the policy of the profile (e.g. zaproxy-plugin-fast).
+ */
+public enum ZAPScanProfile
+{
+	/** For the builds of the pull requests, in minutes */
+	FAST("LOW", "HIGH", 10, 0, new String[] {
+			// Time based SQL injections (MySQL, Hypersonic, Oracle, PostgreSQL) wait on each request
+			"40019=OFF", "40020=OFF", "40021=OFF", "40022=OFF" }),
+
+	/** For the nightly builds */
+	NIGHTLY("MEDIUM", "MEDIUM", 5, 0, new String[] {}),
+
+	/** Everything ZAP can try */
+	FULL("INSANE", "LOW", 2, 10, new String[] {});
+
+	private static final String POLICY_NAME_PREFIX = "zaproxy-plugin-";
+
+	private final String attackStrength;
+	private final String alertThreshold;
+	private final int threadsPerHost;
+	private final int delayInMs;
+	/** scanner id=attack strength, or OFF to disable the scanner */
+	private final String[] scannerStrengths;
+
+	private ZAPScanProfile(String attackStrength, String alertThreshold, int threadsPerHost, int delayInMs, String[] scannerStrengths)
+	{
+		this.attackStrength = attackStrength;
+		this.alertThreshold = alertThreshold;
+		this.threadsPerHost = threadsPerHost;
+		this.delayInMs = delayInMs;
+		this.scannerStrengths = scannerStrengths;
+	}
+
+	/**
+	 * @return the profile, null for a blank or unknown name
+	 */
+	public static ZAPScanProfile fromName(String name)
+	{
+		if (name == null || name.trim().length() == 0)
+			return null;
+
+		try
+		{
+			return valueOf(name.trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return the name of the scan policy of the profile in ZAP
+	 */
+	public String getPolicyName()
+	{
+		return POLICY_NAME_PREFIX + name().toLowerCase();
+	}
+
+	/**
+	 * Create the scan policy of the profile in ZAP, replacing the one of a previous build,
+	 * and set the scan options of the profile.
+	 *
+	 * @param scanOptions the options of ZAP changed by the build, restored when it ends
+	 * @param workspace the workspace of the build, may contain a policy file for the profile. 
+	 * Null if ZAP doesn't run on the build node and can't read the file
+	 */
+	public void apply(ClientApi zapClientAPI, String apikey, FilePath workspace, ZAPScanOptions scanOptions, BuildListener listener) throws ClientApiException
+	{
+		String policyName = getPolicyName();
+
+		try
+		{
+			call(zapClientAPI, apikey, "removeScanPolicy", "scanPolicyName", policyName);
+		}
+		catch (ClientApiException e)
+		{
+			// No policy of a previous build
+		}
+
+		File policyFile = null;
+		if (workspace != null)
+			policyFile = new File(new File(workspace.getRemote(), ZAProxy.NAME_POLICIES_DIR_ZAP), name() + ZAProxy.FILE_POLICY_EXTENSION);
+
+		if (policyFile != null && policyFile.isFile())
+		{
+			call(zapClientAPI, apikey, "importScanPolicy", "path", policyFile.getAbsolutePath());
+			listener.getLogger().println("Scan policy imported [" + policyFile.getAbsolutePath() + "]");
+		}
+		else
+		{
+			call(zapClientAPI, apikey, "addScanPolicy", "scanPolicyName", policyName);
+
+			for (String categoryId : getCategoryIds(zapClientAPI, policyName))
+			{
+				call(zapClientAPI, apikey, "setPolicyAttackStrength", "id", categoryId, "attackStrength", attackStrength, "scanPolicyName", policyName);
+				call(zapClientAPI, apikey, "setPolicyAlertThreshold", "id", categoryId, "alertThreshold", alertThreshold, "scanPolicyName", policyName);
+			}
+
+			for (String scannerStrength : scannerStrengths)
+			{
+				String[] scanner = scannerStrength.split("=");
+				if ("OFF".equals(scanner[1]))
+					call(zapClientAPI, apikey, "disableScanners", "ids", scanner[0], "scanPolicyName", policyName);
+				else
+					call(zapClientAPI, apikey, "setScannerAttackStrength", "id", scanner[0], "attackStrength", scanner[1], "scanPolicyName", policyName);
+			}
+
+			listener.getLogger().println(String.format("Scan policy [%s] created: strength %s, threshold %s", policyName, attackStrength, alertThreshold));
+		}
+
+		scanOptions.set("ThreadPerHost", threadsPerHost);
+		scanOptions.set("DelayInMs", delayInMs);
+
+		listener.getLogger().println(String.format("Scan profile %s: %d thread(s) per host, %d ms between requests", name(), threadsPerHost, delayInMs));
+	}
+
+	/**
+	 * @return the ids of the scanner categories of the policy
+	 */
+	private static String[] getCategoryIds(ClientApi zapClientAPI, String policyName) throws ClientApiException
+	{
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("scanPolicyName", policyName);
+
+		ApiResponse response = zapClientAPI.callApi("ascan", "view", "policies", params);
+		String[] ids = new String[((ApiResponseList)response).getItems().size()];
+		int i = 0;
+		for (ApiResponse item : ((ApiResponseList)response).getItems())
+			ids[i++] = ((ApiResponseSet)item).getAttribute("id");
+
+		return ids;
+	}
+
+	/**
+	 * Call an action of the active scanner, the client API of this ZAP version lacks some of them.
+	 *
+	 * @param params names and values of the parameters
+	 */
+	static void call(ClientApi zapClientAPI, String apikey, String action, String... params) throws ClientApiException
+	{
+		Map<String, String> map = new HashMap<String, String>();
+		map.put("apikey", apikey);
+		for (int i = 0; i < params.length; i += 2)
+			map.put(params[i], params[i + 1]);
+
+		zapClientAPI.callApi("ascan", "action", action, map);
+	}
+}
@@ -0,0 +1,172 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * The scans started by the zapStart pipeline step and not awaited yet, by build and name,
+ * so that the zapAwait and zapAbort steps of the same build find them.
+ *
+ * The scans are only known by this Jenkins instance: a scan started before a restart can't be awaited.
+ */
+public class ZAPScanRegistry
+{
+	private static final ZAPScanRegistry uniqueInstance = new ZAPScanRegistry();
+
+	// build id + name -> scan
+	private final Map<String, Scan> scans = new HashMap<String, Scan>();
+
+	private ZAPScanRegistry()
+	{
+	}
+
+	public static ZAPScanRegistry getInstance()
+	{
+		return uniqueInstance;
+	}
+
+	/**
+	 * @throws AbortException if a scan with the same name is still running in the build
+	 */
+	public synchronized void register(Run<?, ?> run, String name, Scan scan) throws AbortException
+	{
+		Scan previous = scans.get(getKey(run, name));
+		if (previous != null && !previous.getFuture().isDone())
+			throw new AbortException("A ZAProxy scan named [" + name + "] is already running in this build");
+
+		scans.put(getKey(run, name), scan);
+	}
+
+	/**
+	 * @return the scan, null if no scan with this name was started by the build
+	 */
+	public synchronized Scan get(Run<?, ?> run, String name)
+	{
+		return scans.get(getKey(run, name));
+	}
+
+	/**
+	 * @return the scan removed, null if no scan with this name was started by the build
+	 */
+	public synchronized Scan remove(Run<?, ?> run, String name)
+	{
+		return scans.remove(getKey(run, name));
+	}
+
+	/**
+	 * Cancel and forget the scans of a build.
+	 *
+	 * @return the number of scans which were still running
+	 */
+	private int cancelAll(Run<?, ?> run, TaskListener listener)
+	{
+		String prefix = run.getExternalizableId() + " ";
+		List<Scan> removed = new ArrayList<Scan>();
+
+		synchronized (this)
+		{
+			Iterator<Map.Entry<String, Scan>> entries = scans.entrySet().iterator();
+			while (entries.hasNext())
+			{
+				Map.Entry<String, Scan> entry = entries.next();
+				if (!entry.getKey().startsWith(prefix))
+					continue;
+
+				removed.add(entry.getValue());
+				entries.remove();
+			}
+		}
+
+		// ZAP is called outside of the lock
+		int cancelled = 0;
+		for (Scan scan : removed)
+		{
+			if (scan.cancel(listener))
+				cancelled++;
+		}
+
+		return cancelled;
+	}
+
+	private static String getKey(Run<?, ?> run, String name)
+	{
+		return run.getExternalizableId() + " " + name;
+	}
+
+	/**
+	 * A scan running in a thread of its node, with what's needed to stop its spiders and scans in ZAP.
+	 */
+	public static class Scan
+	{
+		private final Future<Boolean> future;
+		private final FilePath workspace;
+		private final ZAProxy zaproxy;
+
+		public Scan(Future<Boolean> future, FilePath workspace, ZAProxy zaproxy)
+		{
+			this.future = future;
+			this.workspace = workspace;
+			this.zaproxy = zaproxy;
+		}
+
+		public Future<Boolean> getFuture()
+		{
+			return future;
+		}
+
+		/**
+		 * Interrupt the thread of the scan, and stop its spiders and scans in ZAP: they would go on
+		 * running if the thread didn't get the interrupt.
+		 *
+		 * @return false if the scan already ended
+		 */
+		public boolean cancel(TaskListener listener)
+		{
+			if (!future.cancel(true))
+				return false;
+
+			try
+			{
+				workspace.act(new ZAProxy.StopScansCallable(zaproxy, new StreamBuildListener(listener.getLogger())));
+			}
+			catch (IOException e)
+			{
+				listener.getLogger().println("ZAProxy scans not stopped: " + e.getMessage());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				listener.getLogger().println("ZAProxy scans not stopped: interrupted");
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Cancels the scans a build didn't await, whatever its result, and stops them in ZAP.
+	 */
+	@Extension
+	public static class CancelOnCompletion extends RunListener<Run<?, ?>>
+	{
+		@Override
+		public void onCompleted(Run<?, ?> run, TaskListener listener)
+		{
+			int cancelled = getInstance().cancelAll(run, listener);
+			if (cancelled > 0)
+				listener.getLogger().println(String.format("%d ZAProxy scan(s) not awaited, cancelled", cancelled));
+		}
+	}
+}
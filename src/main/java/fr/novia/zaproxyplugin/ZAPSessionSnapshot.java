@@ -0,0 +1,133 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A ZAP session saved in the workspace after the crawl, so that the next builds with the same
+ * targets, configuration and build parameters load it and skip the crawl.
+ * The key of the snapshot is computed by {@link ZAProxy#computeSessionKey}. A snapshot older than
+ * the maximum age is crawled again, in case the site changed without a change of the parameters.
+ *
+ * The files are written by ZAP itself, so ZAP must run on the build node. ZAP keeps writing to the
+ * session it loads or saves, so the scans run on a copy of the snapshot, deleted when the build ends.
+ */
+public class ZAPSessionSnapshot
+{
+	private static final String SESSIONS_DIR = ".zap/sessions";
+	private static final long MAX_AGE_IN_MS = 24 * 60 * 60 * 1000L;
+	/** Lock file of the session database, it belongs to the ZAP which opened the session */
+	private static final String LOCK_FILE_EXTENSION = ".lck";
+
+	private final File sessionsDir;
+	private final String key;
+
+	public ZAPSessionSnapshot(FilePath workspace, String key)
+	{
+		this.sessionsDir = new File(workspace.getRemote(), SESSIONS_DIR);
+		this.key = key;
+	}
+
+	/**
+	 * @return the session file given to ZAP, ZAP adds its own files next to it
+	 */
+	public File getSessionFile()
+	{
+		return new File(sessionsDir, key + ZAProxy.FILE_SESSION_EXTENSION);
+	}
+
+	/**
+	 * @return true if a snapshot recent enough was saved with this key
+	 */
+	public boolean isAvailable()
+	{
+		File sessionFile = getSessionFile();
+		return sessionFile.isFile() && !isExpired(sessionFile);
+	}
+
+	/**
+	 * Copy the files of the snapshot to a session of the build. The snapshot must not be open in ZAP,
+	 * its files would be copied while ZAP writes them. The copies expire like the snapshots, in case
+	 * a build can't delete its copy.
+	 *
+	 * @return the session file of the copy, to give to ZAP
+	 * @throws IOException if a file can't be copied
+	 */
+	public File copyForBuild() throws IOException
+	{
+		prepareSave();
+
+		String snapshotName = getSessionFile().getName();
+		String copyName = key + "-" + System.currentTimeMillis() + ZAProxy.FILE_SESSION_EXTENSION;
+
+		File[] files = sessionsDir.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (!file.getName().startsWith(snapshotName) || file.getName().endsWith(LOCK_FILE_EXTENSION))
+					continue;
+
+				File copy = new File(sessionsDir, copyName + file.getName().substring(snapshotName.length()));
+				Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		return new File(sessionsDir, copyName);
+	}
+
+	/**
+	 * Delete the files of a copy made by {@link #copyForBuild}, once ZAP closed it.
+	 *
+	 * @return true if all the files were deleted
+	 */
+	public boolean deleteCopy(File copySessionFile)
+	{
+		boolean deleted = true;
+
+		File[] files = sessionsDir.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (file.getName().startsWith(copySessionFile.getName()))
+					deleted &= file.delete();
+			}
+		}
+
+		return deleted;
+	}
+
+	/**
+	 * Create the directory of the snapshots, and delete the expired snapshots and copies with all their files.
+	 */
+	public void prepareSave()
+	{
+		sessionsDir.mkdirs();
+
+		File[] files = sessionsDir.listFiles();
+		if (files == null)
+			return;
+
+		for (File file : files)
+		{
+			if (!file.getName().endsWith(ZAProxy.FILE_SESSION_EXTENSION) || !isExpired(file))
+				continue;
+
+			for (File sessionFile : files)
+			{
+				if (sessionFile.getName().startsWith(file.getName()))
+					sessionFile.delete();
+			}
+		}
+	}
+
+	private static boolean isExpired(File sessionFile)
+	{
+		return System.currentTimeMillis() - sessionFile.lastModified() > MAX_AGE_IN_MS;
+	}
+}
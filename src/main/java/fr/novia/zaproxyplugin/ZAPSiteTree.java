@@ -0,0 +1,246 @@
+package fr.novia.zaproxyplugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.zaproxy.clientapi.core.ApiResponse;
+import org.zaproxy.clientapi.core.ApiResponseElement;
+import org.zaproxy.clientapi.core.ApiResponseList;
+import org.zaproxy.clientapi.core.ClientApi;
+import org.zaproxy.clientapi.core.ClientApiException;
+
+/**
+ * The site tree of the crawled urls, with the number of requests ZAP recorded under each node.
+ * Split into shards of about the same number of requests, so that the active scan of one large
+ * site runs as several scans at the same time instead of one serial pass.
+ *
+ * A shard is a subtree scanned recursively, or a node scanned alone when its subtree was split
+ * between its children. In the site tree of ZAP, the requests of a path (GET:page, GET:page(a),
+ * POST:page(b)) are leaves beside the folder of the path, which holds its subtree: a shard scans its
+ * folder recursively and each request of its path, so that the shards cover the whole tree.
+ */
+public class ZAPSiteTree
+{
+	// sites by url
+	private final Map<String, Node> sites = new LinkedHashMap<String, Node>();
+
+	/**
+	 * Read the urls ZAP recorded under the target urls.
+	 */
+	public static ZAPSiteTree read(ClientApi zapClientAPI, List<String> targetUrls) throws ClientApiException
+	{
+		ZAPSiteTree tree = new ZAPSiteTree();
+
+		ApiResponse response = zapClientAPI.core.urls();
+		for (ApiResponse item : ((ApiResponseList)response).getItems())
+		{
+			String url = ((ApiResponseElement)item).getValue();
+			for (String targetUrl : targetUrls)
+			{
+				if (url.startsWith(targetUrl.trim()))
+				{
+					tree.add(url);
+					break;
+				}
+			}
+		}
+
+		return tree;
+	}
+
+	private void add(String url)
+	{
+		// The requests of a path with different queries are on the same node
+		int queryIndex = url.indexOf('?');
+		if (queryIndex != -1)
+			url = url.substring(0, queryIndex);
+
+		int pathIndex = url.indexOf('/', url.indexOf("://") + 3);
+		String siteUrl = pathIndex == -1 ? url : url.substring(0, pathIndex);
+
+		Node node = sites.get(siteUrl);
+		if (node == null)
+		{
+			node = new Node(siteUrl, true);
+			sites.put(siteUrl, node);
+		}
+
+		if (pathIndex != -1)
+		{
+			for (String segment : url.substring(pathIndex + 1).split("/"))
+			{
+				if (segment.length() > 0)
+					node = node.getChild(segment);
+			}
+
+			// http://host/path/ is the folder of the path
+			if (url.endsWith("/"))
+				node.folder = true;
+		}
+
+		node.requests++;
+	}
+
+	/**
+	 * @return the number of requests of the whole tree
+	 */
+	public int getRequestCount()
+	{
+		int requests = 0;
+		for (Node site : sites.values())
+			requests += site.getRequestCount();
+		return requests;
+	}
+
+	/**
+	 * Split the tree into shards, the largest shard is split between its children until there are
+	 * enough shards or no shard can be split anymore. There may be more shards than asked for, as a
+	 * shard is split between all its children at once.
+	 *
+	 * @param shardCount the number of shards wanted
+	 * @return the shards, the largest first
+	 */
+	public List<Shard> split(int shardCount)
+	{
+		List<Shard> shards = new ArrayList<Shard>();
+		for (Node site : sites.values())
+			shards.add(new Shard(site, true));
+
+		while (shards.size() < shardCount)
+		{
+			Shard largest = null;
+			for (Shard shard : shards)
+			{
+				if (shard.recursive && !shard.node.children.isEmpty() && (largest == null || shard.getRequestCount() > largest.getRequestCount()))
+					largest = shard;
+			}
+
+			if (largest == null)
+				break;
+
+			shards.remove(largest);
+			if (largest.node.requests > 0)
+				shards.add(new Shard(largest.node, false));
+			for (Node child : largest.node.children.values())
+				shards.add(new Shard(child, true));
+		}
+
+		// The largest shards start first, the small ones fill the scan slots at the end
+		Collections.sort(shards, new Comparator<Shard>()
+		{
+			@Override
+			public int compare(Shard shard1, Shard shard2)
+			{
+				return shard2.getRequestCount() - shard1.getRequestCount();
+			}
+		});
+
+		return shards;
+	}
+
+	private static class Node
+	{
+		private final String url;
+		private final boolean site;
+		private final Map<String, Node> children = new LinkedHashMap<String, Node>();
+		// true if ZAP has a folder for the path: the node has children or a request ends with /
+		private boolean folder;
+		// requests recorded on this node itself
+		private int requests;
+		// requests of the subtree, computed once the tree is read
+		private int subtreeRequests = -1;
+
+		private Node(String url, boolean site)
+		{
+			this.url = url;
+			this.site = site;
+		}
+
+		private Node getChild(String segment)
+		{
+			Node child = children.get(segment);
+			if (child == null)
+			{
+				child = new Node(url + "/" + segment, false);
+				children.put(segment, child);
+				folder = true;
+			}
+			return child;
+		}
+
+		private int getRequestCount()
+		{
+			if (subtreeRequests == -1)
+			{
+				subtreeRequests = requests;
+				for (Node child : children.values())
+					subtreeRequests += child.getRequestCount();
+			}
+			return subtreeRequests;
+		}
+	}
+
+	/**
+	 * A part of the tree scanned by one active scan.
+	 */
+	public static class Shard
+	{
+		private final Node node;
+		private final boolean recursive;
+
+		private Shard(Node node, boolean recursive)
+		{
+			this.node = node;
+			this.recursive = recursive;
+		}
+
+		public String getUrl()
+		{
+			return node.url;
+		}
+
+		/**
+		 * @return the url scanned recursively, the whole site or the folder of the path with its
+		 * trailing /, null if the shard has no folder to scan
+		 */
+		public String getFolderUrl()
+		{
+			if (!recursive)
+				return null;
+			if (node.site)
+				return node.url;
+			return node.folder ? node.url + "/" : null;
+		}
+
+		/**
+		 * @return the urls, without query, whose requests are scanned one by one: the requests of
+		 * the path, and of its folder when the subtree was split
+		 */
+		public List<String> getRequestUrls()
+		{
+			if (!recursive)
+				return Arrays.asList(node.url, node.url + "/");
+			if (node.site)
+				return Collections.emptyList();
+			return Collections.singletonList(node.url);
+		}
+
+		/**
+		 * @return true if the subtree is scanned, false if the node is scanned alone
+		 */
+		public boolean isRecursive()
+		{
+			return recursive;
+		}
+
+		public int getRequestCount()
+		{
+			return recursive ? node.getRequestCount() : node.requests;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+
+import java.util.HashMap;
+import java.util.concurrent.Future;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.google.inject.Inject;
+
+/**
+ * Pipeline step starting a ZAProxy scan in the background on the node of the workspace, and returning
+ * at once. The scan goes on while the next steps run, e.g. the functional tests sending their traffic
+ * through ZAP in a parallel branch, and is awaited by the zapAwait step or cancelled by the zapAbort step.
+ *
+ * ZAP must already be running at the default host and port of the global configuration, the step
+ * doesn't start it and doesn't shut it down.
+ */
+public class ZAPStartStep extends AbstractStepImpl
+{
+	static final String DEFAULT_NAME = "zap";
+
+	private final String name;
+	private final ZAProxy zaproxy;
+
+	@DataBoundConstructor
+	public ZAPStartStep(String name, ZAProxy zaproxy)
+	{
+		this.name = name;
+		this.zaproxy = zaproxy;
+	}
+
+	/**
+	 * @return the name of the scan in the build, given to the zapAwait and zapAbort steps
+	 */
+	public String getName()
+	{
+		return getName(name);
+	}
+
+	public ZAProxy getZaproxy()
+	{
+		return zaproxy;
+	}
+
+	static String getName(String name)
+	{
+		return name == null || name.trim().length() == 0 ? DEFAULT_NAME : name.trim();
+	}
+
+	@Extension(optional = true)
+	public static class DescriptorImpl extends AbstractStepDescriptorImpl
+	{
+		public DescriptorImpl()
+		{
+			super(Execution.class);
+		}
+
+		@Override
+		public String getFunctionName()
+		{
+			return "zapStart";
+		}
+
+		@Override
+		public String getDisplayName()
+		{
+			return "Start a ZAProxy scan";
+		}
+	}
+
+	public static class Execution extends AbstractSynchronousStepExecution<String>
+	{
+		private static final long serialVersionUID = 3081264961735226502L;
+
+		@Inject(optional = true)
+		private transient ZAPStartStep step;
+		@StepContextParameter
+		private transient Run<?, ?> run;
+		@StepContextParameter
+		private transient FilePath workspace;
+		@StepContextParameter
+		private transient TaskListener listener;
+
+		@Override
+		protected String run() throws Exception
+		{
+			ZAProxy zaproxy = step.getZaproxy().forBuild();
+			ZAProxyBuilder.ZAProxyBuilderDescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(ZAProxyBuilder.ZAProxyBuilderDescriptorImpl.class);
+			zaproxy.setZapProxyHost(descriptor.getZapProxyDefaultHost());
+			zaproxy.setZapProxyPort(descriptor.getZapProxyDefaultPort());
+			zaproxy.setZapProxyHome(descriptor.getZapProxyDefaultHome());
+			// ZAP runs on its own, it's kept running after the scan
+			zaproxy.setZapProxyLocalLaunch(false);
+			zaproxy.setZapProxyLeased(false);
+			zaproxy.setSessionKey(zaproxy.computeSessionKey(new HashMap<String, String>()));
+
+			// The callable runs in a thread of the node, the executor of the step is freed at once
+			Future<Boolean> scan = workspace.actAsync(new ZAProxyBuilder.ZAProxyCallable(zaproxy, new StreamBuildListener(listener.getLogger())));
+			ZAPScanRegistry.getInstance().register(run, step.getName(), new ZAPScanRegistry.Scan(scan, workspace, zaproxy));
+
+			listener.getLogger().println("ZAProxy scan [" + step.getName() + "] started");
+			return step.getName();
+		}
+	}
+}
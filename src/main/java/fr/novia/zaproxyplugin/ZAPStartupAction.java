@@ -0,0 +1,27 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.model.InvisibleAction;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Records the time ZAP took to be ready in the build, so that it can be followed
+ * across builds through the remote API of Jenkins.
+ */
+@ExportedBean
+public class ZAPStartupAction extends InvisibleAction
+{
+	private final long startupTimeInMs;
+
+	public ZAPStartupAction(long startupTimeInMs)
+	{
+		this.startupTimeInMs = startupTimeInMs;
+	}
+
+	@Exported
+	public long getStartupTimeInMs()
+	{
+		return startupTimeInMs;
+	}
+}
@@ -0,0 +1,259 @@
+package fr.novia.zaproxyplugin;
+
+import hudson.model.BuildListener;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.zaproxy.clientapi.core.ApiResponse;
+import org.zaproxy.clientapi.core.ApiResponseElement;
+import org.zaproxy.clientapi.core.ApiResponseList;
+import org.zaproxy.clientapi.core.ApiResponseSet;
+import org.zaproxy.clientapi.core.ClientApi;
+import org.zaproxy.clientapi.core.ClientApiException;
+
+/**
+ * Follows all the running spiders, ajax spider and active scans of ZAP with one round of API calls
+ * per tick: spider.scans(), ajaxSpider.status() and ascan.scans() are only called when a scan of
+ * this kind is watched, whatever the number of scans.
+ * Progress and completion are sent to the {@link ScanWatcher} registered for each scan.
+ *
+ * The polling interval starts short so that quick scans are noticed quickly, and grows while
+ * nothing changes so that long scans don't flood a busy ZAP with status requests.
+ * ZAP doesn't push scan events through this API version, so the poller estimates when each scan
+ * will end from its progress rate and wakes up at that time instead of waiting for the whole
+ * interval.
+ */
+public class ZAPStatusPoller
+{
+	private static final int MIN_POLLING_INTERVAL_IN_MS = 250;
+	private static final int MAX_POLLING_INTERVAL_IN_MS = 5000;
+	private static final double POLLING_BACKOFF_FACTOR = 1.5;
+
+	/** Time between two logs of the total number of alerts */
+	private static final int ALERTS_LOG_INTERVAL_IN_MS = 30000;
+
+	private static final String AJAX_SPIDER_ID = "ajaxSpider";
+
+	/**
+	 * Receives the state changes of one scan.
+	 */
+	public interface ScanWatcher
+	{
+		void onProgress(String progress);
+
+		void onFinished() throws ClientApiException;
+	}
+
+	private final ClientApi zapClientAPI;
+	private final BuildListener listener;
+
+	// scan id -> watcher
+	private final Map<String, ScanWatcher> spiderWatchers = new LinkedHashMap<String, ScanWatcher>();
+	private final Map<String, ScanWatcher> activeScanWatchers = new LinkedHashMap<String, ScanWatcher>();
+	private final Map<String, ScanWatcher> ajaxSpiderWatchers = new LinkedHashMap<String, ScanWatcher>();
+
+	// scan kind + scan id -> last progress seen
+	private final Map<String, ProgressSample> progressSamples = new HashMap<String, ProgressSample>();
+
+	private int pollingIntervalInMs = MIN_POLLING_INTERVAL_IN_MS;
+	private long lastAlertsLogTime;
+	private int ticks;
+
+	public ZAPStatusPoller(ClientApi zapClientAPI, BuildListener listener)
+	{
+		this.zapClientAPI = zapClientAPI;
+		this.listener = listener;
+	}
+
+	public void watchSpider(String scanId, ScanWatcher watcher)
+	{
+		spiderWatchers.put(scanId, watcher);
+		pollingIntervalInMs = MIN_POLLING_INTERVAL_IN_MS;
+	}
+
+	public void watchActiveScan(String scanId, ScanWatcher watcher)
+	{
+		activeScanWatchers.put(scanId, watcher);
+		pollingIntervalInMs = MIN_POLLING_INTERVAL_IN_MS;
+	}
+
+	/**
+	 * ZAP runs only one ajax spider crawl at a time, so only one watcher is kept.
+	 */
+	public void watchAjaxSpider(ScanWatcher watcher)
+	{
+		ajaxSpiderWatchers.put(AJAX_SPIDER_ID, watcher);
+		pollingIntervalInMs = MIN_POLLING_INTERVAL_IN_MS;
+	}
+
+	/**
+	 * Wait until the next expected state change (or the current polling interval if nothing is
+	 * expected sooner), then poll ZAP once for all watched scans.
+	 */
+	public void waitAndPoll() throws ClientApiException, InterruptedException
+	{
+		Thread.sleep(getNextDelay());
+		poll();
+	}
+
+	private long getNextDelay()
+	{
+		long now = System.currentTimeMillis();
+		long delayInMs = pollingIntervalInMs;
+
+		// An estimated end already passed is ignored, the backoff interval applies until the scan progresses again
+		for (ProgressSample sample : progressSamples.values())
+		{
+			if (sample.expectedEndTime > now)
+				delayInMs = Math.min(delayInMs, sample.expectedEndTime - now);
+		}
+
+		return Math.max(MIN_POLLING_INTERVAL_IN_MS, delayInMs);
+	}
+
+	public void poll() throws ClientApiException
+	{
+		ticks++;
+		boolean stateChanged = false;
+
+		if (!spiderWatchers.isEmpty())
+			stateChanged |= dispatch("spider", spiderWatchers, getScanStates(zapClientAPI.spider.scans()));
+
+		if (!ajaxSpiderWatchers.isEmpty())
+			stateChanged |= dispatch("ajaxSpider", ajaxSpiderWatchers, getAjaxSpiderState());
+
+		if (!activeScanWatchers.isEmpty())
+			stateChanged |= dispatch("ascan", activeScanWatchers, getScanStates(zapClientAPI.ascan.scans()));
+
+		if (stateChanged)
+			pollingIntervalInMs = MIN_POLLING_INTERVAL_IN_MS;
+		else
+			pollingIntervalInMs = Math.min(MAX_POLLING_INTERVAL_IN_MS, (int)(pollingIntervalInMs * POLLING_BACKOFF_FACTOR));
+
+		long now = System.currentTimeMillis();
+		if (stateChanged || now - lastAlertsLogTime >= ALERTS_LOG_INTERVAL_IN_MS)
+		{
+			listener.getLogger().println("Alerts number = " + zapClientAPI.core.numberOfAlerts("").toString(2));
+			lastAlertsLogTime = now;
+		}
+	}
+
+	/**
+	 * @return the number of polls done since the creation of the poller
+	 */
+	public int getTicks()
+	{
+		return ticks;
+	}
+
+	/**
+	 * @return true if at least one watched scan is finished
+	 */
+	private boolean dispatch(String scanKind, Map<String, ScanWatcher> watchers, Map<String, String> progresses) throws ClientApiException
+	{
+		boolean finished = false;
+		long now = System.currentTimeMillis();
+
+		for (Iterator<Map.Entry<String, ScanWatcher>> it = watchers.entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry<String, ScanWatcher> watcher = it.next();
+			String progress = progresses.get(watcher.getKey());
+			String sampleKey = scanKind + "/" + watcher.getKey();
+
+			// A scan no longer known by ZAP can't be followed anymore
+			if (progress == null)
+			{
+				it.remove();
+				progressSamples.remove(sampleKey);
+				watcher.getValue().onFinished();
+				finished = true;
+			}
+			else
+			{
+				updateProgressSample(sampleKey, progress, now);
+				watcher.getValue().onProgress(progress);
+			}
+		}
+
+		return finished;
+	}
+
+	/**
+	 * Estimate the end time of a scan from the progress made since the previous sample.
+	 */
+	private void updateProgressSample(String sampleKey, String progress, long now)
+	{
+		int percent;
+		try
+		{
+			percent = Integer.parseInt(progress.replace("%", ""));
+		}
+		catch (NumberFormatException e)
+		{
+			// No percentage for the ajax spider
+			return;
+		}
+
+		ProgressSample sample = progressSamples.get(sampleKey);
+		if (sample == null)
+		{
+			progressSamples.put(sampleKey, new ProgressSample(percent, now));
+			return;
+		}
+
+		if (percent > sample.percent && now > sample.time)
+		{
+			double percentPerMs = (double)(percent - sample.percent) / (now - sample.time);
+			sample.expectedEndTime = now + (long)((100 - percent) / percentPerMs);
+			sample.percent = percent;
+			sample.time = now;
+		}
+	}
+
+	/**
+	 * @return the progress of the running scans by scan id, finished scans are left out
+	 */
+	private Map<String, String> getScanStates(ApiResponse response)
+	{
+		Map<String, String> progresses = new HashMap<String, String>();
+
+		for (ApiResponse item : ((ApiResponseList)response).getItems())
+		{
+			ApiResponseSet itemSet = (ApiResponseSet)item;
+
+			if ("FINISHED".equalsIgnoreCase(itemSet.getAttribute("state")) || "100".equals(itemSet.getAttribute("progress")))
+				continue;
+
+			progresses.put(itemSet.getAttribute("id"), itemSet.getAttribute("progress") + "%");
+		}
+
+		return progresses;
+	}
+
+	private Map<String, String> getAjaxSpiderState() throws ClientApiException
+	{
+		Map<String, String> progresses = new HashMap<String, String>();
+
+		String status = ((ApiResponseElement)zapClientAPI.ajaxSpider.status()).getValue();
+		if ("running".equalsIgnoreCase(status))
+			progresses.put(AJAX_SPIDER_ID, status);
+
+		return progresses;
+	}
+
+	private static class ProgressSample
+	{
+		private int percent;
+		private long time;
+		private long expectedEndTime = Long.MAX_VALUE;
+
+		private ProgressSample(int percent, long time)
+		{
+			this.percent = percent;
+			this.time = time;
+		}
+	}
+}
@@ -1,11 +1,30 @@
 package fr.novia.zaproxyplugin;
 
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
 
 public class ZAPUtil 
 {
+	/**
+	 * Length of one context regex once URL encoded in the ZAP API request, keeps the request URL 
+	 * (with the API key and the context name) under the usual 8 KB limit
+	 */
+	private static final int MAX_ENCODED_CONTEXT_REGEX_LENGTH = 6000;
+	
+	/** Encoded length of the group around the alternatives of a merged regex, (?: and ).* */
+	private static final int ENCODED_GROUP_LENGTH = encodedLength("(?:).*");
+	private static final int ENCODED_SEPARATOR_LENGTH = encodedLength("|");
+	
 	public static boolean isLocalIP(String zapProxyHost)
 	{
 		if ("localhost".equalsIgnoreCase(zapProxyHost) || "127.0.0.1".equalsIgnoreCase(zapProxyHost))
@@ -32,4 +51,107 @@ public class ZAPUtil
 		
 	    return false;
 	}
+	
+	/**
+	 * Build the regexes matching all the urls and everything under them, using as few regexes as possible.
+	 * Duplicated urls and urls under another url of the list are dropped, then the urls of the same 
+	 * origin (scheme, host and port) are merged into one regex like <code>\Qhttp://host\E(?:\Q/a\E|\Q/b\E).*</code>
+	 * A merged regex is split when its URL encoded length, which is what ends up in the request, gets too long.
+	 * 
+	 * @param urls the urls, blank ones are ignored
+	 * @return the regexes to register in a ZAP context
+	 */
+	public static List<String> buildContextRegexes(Collection<String> urls)
+	{
+		// Sorted, so that an url comes right after the urls it starts with
+		TreeSet<String> sortedUrls = new TreeSet<String>();
+		for (String url : urls)
+		{
+			if (url != null && url.trim().length() > 0)
+				sortedUrls.add(url.trim());
+		}
+		
+		// origin -> paths under this origin
+		Map<String, List<String>> pathsByOrigin = new LinkedHashMap<String, List<String>>();
+		String lastKeptUrl = null;
+		for (String url : sortedUrls)
+		{
+			if (lastKeptUrl != null && url.startsWith(lastKeptUrl))
+				continue;
+			lastKeptUrl = url;
+			
+			int pathIndex = url.indexOf('/', url.indexOf("://") == -1 ? 0 : url.indexOf("://") + 3);
+			String origin = pathIndex == -1 ? url : url.substring(0, pathIndex);
+			String path = pathIndex == -1 ? "" : url.substring(pathIndex);
+			
+			List<String> paths = pathsByOrigin.get(origin);
+			if (paths == null)
+			{
+				paths = new ArrayList<String>();
+				pathsByOrigin.put(origin, paths);
+			}
+			paths.add(path);
+		}
+		
+		List<String> regexes = new ArrayList<String>();
+		for (Map.Entry<String, List<String>> origin : pathsByOrigin.entrySet())
+		{
+			String originRegex = Pattern.quote(origin.getKey());
+			int encodedOriginLength = encodedLength(originRegex) + ENCODED_GROUP_LENGTH;
+			StringBuilder alternatives = new StringBuilder();
+			int encodedAlternativesLength = 0;
+			int alternativesCount = 0;
+			
+			for (String path : origin.getValue())
+			{
+				String pathRegex = path.length() == 0 ? "" : Pattern.quote(path);
+				int encodedPathLength = encodedLength(pathRegex);
+				
+				if (alternativesCount > 0 && encodedOriginLength + encodedAlternativesLength + ENCODED_SEPARATOR_LENGTH + encodedPathLength > MAX_ENCODED_CONTEXT_REGEX_LENGTH)
+				{
+					regexes.add(buildContextRegex(originRegex, alternatives, alternativesCount));
+					alternatives.setLength(0);
+					encodedAlternativesLength = 0;
+					alternativesCount = 0;
+				}
+				
+				if (alternativesCount > 0)
+				{
+					alternatives.append('|');
+					encodedAlternativesLength += ENCODED_SEPARATOR_LENGTH;
+				}
+				alternatives.append(pathRegex);
+				encodedAlternativesLength += encodedPathLength;
+				alternativesCount++;
+			}
+			
+			regexes.add(buildContextRegex(originRegex, alternatives, alternativesCount));
+		}
+		
+		return regexes;
+	}
+	
+	/**
+	 * @return the length of the text encoded in a request parameter, each character is encoded on its own
+	 */
+	private static int encodedLength(String text)
+	{
+		try
+		{
+			return URLEncoder.encode(text, "UTF-8").length();
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			// Every JVM has UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static String buildContextRegex(String originRegex, StringBuilder alternatives, int alternativesCount)
+	{
+		if (alternativesCount == 1)
+			return originRegex + alternatives + ".*";
+		
+		return originRegex + "(?:" + alternatives + ").*";
+	}
 }
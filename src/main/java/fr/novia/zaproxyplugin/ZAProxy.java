@@ -26,11 +26,15 @@ package fr.novia.zaproxyplugin;
 
 import fr.novia.zaproxyplugin.report.ZAPreport;
 import fr.novia.zaproxyplugin.report.ZAPreportCollection;
+import fr.novia.zaproxyplugin.report.ZAPreportXML;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.FilePath.FileCallable;
 import hudson.Launcher;
+import hudson.Launcher.ProcStarter;
+import hudson.Proc;
+import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
@@ -40,28 +44,37 @@ import hudson.model.JDK;
 import hudson.model.Node;
 import hudson.remoting.VirtualChannel;
 import hudson.slaves.SlaveComputer;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.tools.ant.BuildException;
 import org.jenkinsci.remoting.RoleChecker;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 import org.zaproxy.clientapi.core.ApiResponse;
 import org.zaproxy.clientapi.core.ApiResponseElement;
 import org.zaproxy.clientapi.core.ApiResponseList;
@@ -96,6 +109,9 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 	private static final String CMD_LINE_API_KEY = "api.key";
 	
 	private static final int TimeoutInSec = 60;
+	private static final int MIN_READINESS_INTERVAL_IN_MS = 50;
+	private static final int MAX_READINESS_INTERVAL_IN_MS = 2000;
+	private static final int MAX_PASSIVE_SCAN_WAIT_IN_MS = 10 * 60 * MILLISECONDS_IN_SECOND;
 	
 	// TODO Do import when zap-2.4.0.jar will contain the correct API version
 //	public static final String CMD_LINE_DIR = CommandLine.DIR;
@@ -109,6 +125,9 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 
 	private static final String SCRIPT_NAME = "common-auth-json";
 	
+	/** Value of the variables Jenkins looks for to kill the processes of a build when it ends */
+	private static final String DONT_KILL_ME = "dontKillMe";
+	
 	/** Host configured when ZAProxy is used as proxy */
 	private String zapProxyHost;
 	
@@ -123,6 +142,9 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 	
 	private boolean zapProxyLocalLaunch;
 	
+	/** ZAProxy is a daemon leased from the {@link ZAPDaemonPool}, it's reset instead of shut down */
+	private boolean zapProxyLeased;
+	
 	/** Time total to wait for zap initialization. After this time, the program is stopped */
 	
 	/** URL to attack by ZAProxy */
@@ -152,13 +174,56 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 	/** Realize a url scan or not by ZAProxy */
 	private final boolean scanURL;
 	
+	/** Maximum number of active scans running at the same time */
+	private final int maxConcurrentScans;
+	
+	/** Name of the {@link ZAPScanProfile} of the active scan, blank for the default policy of ZAP */
+	private final String scanProfile;
+	
+	/** Limits of the load put on the scanned hosts, blank to keep the settings of ZAP or of the profile */
+	private final String maxThreadsPerHost;
+	private final String maxRequestsPerSecond;
+	private final String maxConcurrentHosts;
+	
+	/** Formats of the reports saved into the workspace (html, xml, json, md) */
+	private final String reportFormats;
+	
+	/** Stop the scans and fail the build as soon as a high risk alert is raised */
+	private final boolean failOnHighRisk;
+	
+	/** Maximum numbers of alerts by risk before the scans are stopped and the build fails, blank for no limit */
+	private final String maxHighAlerts;
+	private final String maxMediumAlerts;
+	private final String maxLowAlerts;
+	
+	/** Actively scan only the endpoints new or changed since the previous build */
+	private final boolean incrementalScan;
+	
+	/** Time after which the spiders and scans are stopped, blank for no limit */
+	private final String timeBudgetInMinutes;
+	
+	/** End of the time budget of the running build, 0 if there is none */
+	private long scanDeadline;
+	
+	/** Other ZAP instances sharing the targets of the scan, host:port separated by ; or , */
+	private final String zapNodes;
+	
+	/** Number of active scans the crawled site tree is split into, blank for one scan per target */
+	private final String scanShards;
+	
+	/** Save the session after the crawl, and load it instead of crawling in the next builds */
+	private final boolean sessionSnapshot;
+	
+	/** Key of the session snapshot of the build, computed on the master from the build variables */
+	private String sessionKey;
+	
 	private final String clickElements;
 	
 	private final ArrayList<AuthenticationStep> authenticationSteps;
 	private final ArrayList<AjaxSpiderFieldValue> ajaxSpiderFieldValues;
 	
 	@DataBoundConstructor
-	public ZAProxy(String targetURL, String includeURLs,  String excludeURLs, boolean spiderURL, boolean scanURL, boolean authentication, List<AuthenticationStep> authenticationSteps, String loggedInIndicator, String loggedOutIndicator, boolean ajaxSpiderURL, String clickElements, List<AjaxSpiderFieldValue> ajaxSpiderFieldValues) {
+	public ZAProxy(String targetURL, String includeURLs,  String excludeURLs, boolean spiderURL, boolean scanURL, boolean authentication, List<AuthenticationStep> authenticationSteps, String loggedInIndicator, String loggedOutIndicator, boolean ajaxSpiderURL, String clickElements, List<AjaxSpiderFieldValue> ajaxSpiderFieldValues, int maxConcurrentScans, String reportFormats, boolean failOnHighRisk, String maxHighAlerts, String maxMediumAlerts, String maxLowAlerts, boolean incrementalScan, boolean sessionSnapshot, String scanProfile, String maxThreadsPerHost, String maxRequestsPerSecond, String maxConcurrentHosts, String timeBudgetInMinutes, String zapNodes, String scanShards) {
 		this.targetURL = targetURL;
 		this.includeURLs = includeURLs;
 		this.excludeURLs = excludeURLs;
@@ -169,6 +234,21 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 		this.loggedInIndicator = loggedInIndicator;
 		this.loggedOutIndicator = loggedOutIndicator;
 		this.clickElements = clickElements;
+		this.maxConcurrentScans = maxConcurrentScans;
+		this.reportFormats = reportFormats;
+		this.failOnHighRisk = failOnHighRisk;
+		this.maxHighAlerts = maxHighAlerts;
+		this.maxMediumAlerts = maxMediumAlerts;
+		this.maxLowAlerts = maxLowAlerts;
+		this.incrementalScan = incrementalScan;
+		this.sessionSnapshot = sessionSnapshot;
+		this.scanProfile = scanProfile;
+		this.maxThreadsPerHost = maxThreadsPerHost;
+		this.maxRequestsPerSecond = maxRequestsPerSecond;
+		this.maxConcurrentHosts = maxConcurrentHosts;
+		this.timeBudgetInMinutes = timeBudgetInMinutes;
+		this.zapNodes = zapNodes;
+		this.scanShards = scanShards;
 
 		this.authenticationSteps = authenticationSteps != null ? new ArrayList<AuthenticationStep>(authenticationSteps) : new ArrayList<AuthenticationStep>();
 		this.ajaxSpiderFieldValues = ajaxSpiderFieldValues != null ? new ArrayList<AjaxSpiderFieldValue>(ajaxSpiderFieldValues) : new ArrayList<AjaxSpiderFieldValue>();		
@@ -188,12 +268,45 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 		s += "ajaxSpiderURL ["+ajaxSpiderURL+"]\n";
 		s += "clickElements ["+clickElements+"]\n";
 		s += "scanURL ["+scanURL+"]\n";
+		s += "maxConcurrentScans ["+maxConcurrentScans+"]\n";
+		s += "scanProfile ["+scanProfile+"]\n";
+		s += "maxThreadsPerHost ["+maxThreadsPerHost+"]\n";
+		s += "maxRequestsPerSecond ["+maxRequestsPerSecond+"]\n";
+		s += "maxConcurrentHosts ["+maxConcurrentHosts+"]\n";
+		s += "timeBudgetInMinutes ["+timeBudgetInMinutes+"]\n";
+		s += "zapNodes ["+zapNodes+"]\n";
+		s += "scanShards ["+scanShards+"]\n";
+		s += "reportFormats ["+reportFormats+"]\n";
+		s += "failOnHighRisk ["+failOnHighRisk+"]\n";
+		s += "maxHighAlerts ["+maxHighAlerts+"]\n";
+		s += "maxMediumAlerts ["+maxMediumAlerts+"]\n";
+		s += "maxLowAlerts ["+maxLowAlerts+"]\n";
+		s += "incrementalScan ["+incrementalScan+"]\n";
+		s += "sessionSnapshot ["+sessionSnapshot+"]\n";
 		s += "zapProxyHost ["+zapProxyHost+"]\n";
 		s += "zapProxyPort ["+zapProxyPort+"]\n";
 		
 		return s;
 	}
 	
+	/**
+	 * Copy the settings of the job for one build. The state of a build (ZAP port, time budget deadline, 
+	 * session key, context and user) is only set on its copy, the builds of the job running at the 
+	 * same time would share it otherwise.
+	 * 
+	 * @return a copy of the job settings and of the ZAP settings, without build state
+	 */
+	public ZAProxy forBuild() {
+		ZAProxy copy = new ZAProxy(targetURL, includeURLs, excludeURLs, spiderURL, scanURL, authentication, authenticationSteps, loggedInIndicator, loggedOutIndicator, 
+				ajaxSpiderURL, clickElements, ajaxSpiderFieldValues, maxConcurrentScans, reportFormats, failOnHighRisk, maxHighAlerts, maxMediumAlerts, maxLowAlerts, 
+				incrementalScan, sessionSnapshot, scanProfile, maxThreadsPerHost, maxRequestsPerSecond, maxConcurrentHosts, timeBudgetInMinutes, zapNodes, scanShards);
+		copy.zapProxyHost = zapProxyHost;
+		copy.zapProxyPort = zapProxyPort;
+		copy.zapProxyHome = zapProxyHome;
+		copy.zapProxyLocalLaunch = zapProxyLocalLaunch;
+		return copy;
+	}
+	
 	// Overridden for better type safety.
 	// If your plugin doesn't really define any property on Descriptor,
 	// you don't have to do this.
@@ -233,14 +346,180 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 		return scanURL;
 	}
 
+	public int getMaxConcurrentScans() {
+		return maxConcurrentScans;
+	}
+
+	public String getScanProfile() {
+		return scanProfile;
+	}
+
+	public String getMaxThreadsPerHost() {
+		return maxThreadsPerHost;
+	}
+
+	public String getMaxRequestsPerSecond() {
+		return maxRequestsPerSecond;
+	}
+
+	public String getMaxConcurrentHosts() {
+		return maxConcurrentHosts;
+	}
+
+	public String getTimeBudgetInMinutes() {
+		return timeBudgetInMinutes;
+	}
+	
+	private long getTimeBudgetInMs() {
+		return parsePositiveInt(timeBudgetInMinutes) * 60L * MILLISECONDS_IN_SECOND;
+	}
+
+	public String getScanShards() {
+		return scanShards;
+	}
+	
+	public String getZapNodes() {
+		return zapNodes;
+	}
+	
+	/**
+	 * @return the clients of the other ZAP nodes by host:port, the entries which aren't a host:port are skipped
+	 */
+	private Map<String, PooledClientApi> getZapNodeClients(BuildListener listener) {
+		Map<String, PooledClientApi> nodes = new LinkedHashMap<String, PooledClientApi>();
+		if (zapNodes == null || zapNodes.trim().length() == 0)
+			return nodes;
+		
+		for (String node : zapNodes.split(";|,")) {
+			String[] hostAndPort = node.trim().split(":");
+			if (hostAndPort.length != 2 || !hostAndPort[1].matches("[0-9]+")) {
+				if (node.trim().length() > 0)
+					listener.getLogger().println("ZAP node [" + node.trim() + "] skipped, expected host:port");
+				continue;
+			}
+			nodes.put(node.trim(), PooledClientApi.getInstance(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+		}
+		
+		return nodes;
+	}
+
+	public String getReportFormats() {
+		return reportFormats;
+	}
+
+	public boolean getFailOnHighRisk() {
+		return failOnHighRisk;
+	}
+
+	public String getMaxHighAlerts() {
+		return maxHighAlerts;
+	}
+
+	public String getMaxMediumAlerts() {
+		return maxMediumAlerts;
+	}
+
+	public String getMaxLowAlerts() {
+		return maxLowAlerts;
+	}
+
+	public boolean getIncrementalScan() {
+		return incrementalScan;
+	}
+
+	public boolean getSessionSnapshot() {
+		return sessionSnapshot;
+	}
+
+	public void setSessionKey(String sessionKey) {
+		this.sessionKey = sessionKey;
+	}
+	
+	/**
+	 * Compute the key of the session snapshot from everything the crawl depends on.
+	 * 
+	 * @param buildVariables the parameters of the build
+	 * @return a digest of the targets, the crawl configuration and the build variables
+	 */
+	public String computeSessionKey(Map<String, String> buildVariables) {
+		StringBuilder key = new StringBuilder();
+		key.append(targetURL).append('\n').append(includeURLs).append('\n').append(excludeURLs).append('\n');
+		key.append(spiderURL).append('\n').append(ajaxSpiderURL).append('\n').append(clickElements).append('\n').append(getFieldValues()).append('\n');
+		key.append(authentication).append('\n').append(loggedInIndicator).append('\n').append(loggedOutIndicator).append('\n');
+		
+		// Sorted, the key must not depend on the order of the map
+		if (buildVariables != null)
+			key.append(new TreeMap<String, String>(buildVariables));
+		
+		return Util.getDigestOf(key.toString());
+	}
+	
+	/**
+	 * @return the quality gate of the job, "Fail On High Risk" is a gate accepting no High alert
+	 */
+	private ZAPQualityGate getQualityGate() {
+		int maxHigh = failOnHighRisk ? 0 : ZAPQualityGate.parseLimit(maxHighAlerts);
+		return new ZAPQualityGate(maxHigh, ZAPQualityGate.parseLimit(maxMediumAlerts), ZAPQualityGate.parseLimit(maxLowAlerts));
+	}
+	
+	/**
+	 * @return why a number setting of the job is invalid, null if they are all blank or numbers of at least 0
+	 */
+	private String checkNumbers() {
+		String[][] settings = {
+				{ "Max High Alerts", maxHighAlerts },
+				{ "Max Medium Alerts", maxMediumAlerts },
+				{ "Max Low Alerts", maxLowAlerts },
+				{ "Max Threads Per Host", maxThreadsPerHost },
+				{ "Max Requests Per Second", maxRequestsPerSecond },
+				{ "Max Concurrent Hosts", maxConcurrentHosts },
+				{ "Time Budget (minutes)", timeBudgetInMinutes },
+				{ "Scan Shards", scanShards } };
+		
+		for (String[] setting : settings) {
+			String error = checkNumber(setting[0], setting[1]);
+			if (error != null)
+				return error;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return why the value isn't blank or a number of at least 0, null if it is
+	 */
+	private static String checkNumber(String name, String value) {
+		if (value == null || value.trim().length() == 0)
+			return null;
+		
+		try {
+			if (Integer.parseInt(value.trim()) >= 0)
+				return null;
+		} catch (NumberFormatException e) {
+			// Not a number
+		}
+		return name + " must be a number of at least 0, not [" + value.trim() + "]";
+	}
+
+	public String getZapProxyHost() {
+		return zapProxyHost;
+	}
+
 	public void setZapProxyHost(String zapProxyHost) {
 		this.zapProxyHost = zapProxyHost;
 	}
 
+	public int getZapProxyPort() {
+		return zapProxyPort;
+	}
+
 	public void setZapProxyPort(int zapProxyPort) {
 		this.zapProxyPort = zapProxyPort;
 	}
 
+	public void setZapProxyLeased(boolean zapProxyLeased) {
+		this.zapProxyLeased = zapProxyLeased;
+	}
+
 	public void setZapProxyLocalLaunch(boolean zapProxyLocalLaunch) {
 		this.zapProxyLocalLaunch = zapProxyLocalLaunch;
 	}
@@ -343,19 +622,23 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 	 * ZAProxy program is launched in daemon mode (i.e without UI).
 	 * ZAProxy is started on the build's machine (so master machine ou slave machine) thanks to 
 	 * {@link FilePath} object and {@link Launcher} object.
+	 * A daemon leased from the {@link ZAPDaemonPool} outlives the build starting it: it gets neither the
+	 * variables of the build nor the variables Jenkins looks for to kill the processes of the build
+	 * when it ends, and its output doesn't go to the build log.
 	 * 
 	 * @param build
 	 * @param listener the listener to display log during the job execution in jenkins
 	 * @param launcher the object to launch a process locally or remotely
+	 * @return the ZAP process, null if ZAP doesn't run on the build node
 	 * @throws InterruptedException 
 	 * @throws IOException 
 	 * @throws IllegalArgumentException 
 	 */
-	public void startZAP(AbstractBuild<?, ?> build, BuildListener listener, Launcher launcher, boolean startZAPGUI) 
+	public Proc startZAP(AbstractBuild<?, ?> build, BuildListener listener, Launcher launcher, boolean startZAPGUI) 
 			throws IllegalArgumentException, IOException, InterruptedException {
 		
 		if (!ZAPUtil.isLocalIP(zapProxyHost))
-			return;
+			return null;
 		
 		checkParams(build, listener);
 		
@@ -384,12 +667,19 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 		cmd.add(CMD_LINE_CONFIG);
 		cmd.add(CMD_LINE_API_KEY + "=" + API_KEY);
 		
-		EnvVars envVars = build.getEnvironment(listener);
-		// on Windows environment variables are converted to all upper case,
-		// but no such conversions are done on Unix, so to make this cross-platform,
-		// convert variables to all upper cases.
-		for(Map.Entry<String,String> e : build.getBuildVariables().entrySet())
-			envVars.put(e.getKey(),e.getValue());
+		EnvVars envVars;
+		if (zapProxyLeased) {
+			envVars = new EnvVars();
+			envVars.put("BUILD_ID", DONT_KILL_ME);
+			envVars.put("JENKINS_NODE_COOKIE", DONT_KILL_ME);
+		} else {
+			envVars = build.getEnvironment(listener);
+			// on Windows environment variables are converted to all upper case,
+			// but no such conversions are done on Unix, so to make this cross-platform,
+			// convert variables to all upper cases.
+			for(Map.Entry<String,String> e : build.getBuildVariables().entrySet())
+				envVars.put(e.getKey(),e.getValue());
+		}
 		
 		FilePath workDir = new FilePath(ws.getChannel(), zapProgram);
 		
@@ -397,10 +687,58 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 		computeJdkToUse(build, listener, envVars);
 		
 		// Launch ZAP process on remote machine (on master if no remote machine)
-		launcher.launch().cmds(cmd).envs(envVars).stdout(listener).pwd(workDir).start();
+		ProcStarter starter = launcher.launch().cmds(cmd).envs(envVars).pwd(workDir);
+		if (!zapProxyLeased)
+			starter.stdout(listener);
+		Proc proc = starter.start();
+		
+		boolean ready = false;
+		try {
+			// Call waitForSuccessfulConnectionToZap(int, BuildListener) remotely
+			long startupTimeInMs = build.getWorkspace().act(new WaitZAProxyInitCallable(this, listener));
+			listener.getLogger().println("ZAProxy ready in " + startupTimeInMs + " ms");
+			build.addAction(new ZAPStartupAction(startupTimeInMs));
+			ready = true;
+		} finally {
+			// A ZAP which never answered isn't left running
+			if (!ready)
+				proc.kill();
+		}
 		
-		// Call waitForSuccessfulConnectionToZap(int, BuildListener) remotely
-		build.getWorkspace().act(new WaitZAProxyInitCallable(this, listener));
+		return proc;
+	}
+	
+	/**
+	 * Check that an already started ZAProxy still answers, and start a new session on it.
+	 * 
+	 * @param build
+	 * @param listener the listener to display log during the job execution in jenkins
+	 * @return false if ZAProxy doesn't answer
+	 * @throws InterruptedException 
+	 * @throws IOException 
+	 */
+	public boolean resetZAP(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
+		// Call resetSession(BuildListener) remotely
+		return build.getWorkspace().act(new ResetZAProxyCallable(this, listener));
+	}
+	
+	/**
+	 * Start a new empty session, the alerts and history of the previous builds are discarded.
+	 * This method is launched on the remote machine (if there is one)
+	 * 
+	 * @param listener the listener to display log during the job execution in jenkins
+	 * @return false if ZAProxy doesn't answer
+	 */
+	private boolean resetSession(BuildListener listener) {
+		try {
+			ClientApi zapClientAPI = PooledClientApi.getInstance(zapProxyHost, zapProxyPort);
+			zapClientAPI.core.version();
+			zapClientAPI.core.newSession(API_KEY, "", "");
+			return true;
+		} catch (ClientApiException e) {
+			listener.getLogger().println("ZAProxy health check failed: " + e.getMessage());
+			return false;
+		}
 	}
 	
 	/**
@@ -428,53 +766,43 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 	/**
 	 * Wait for ZAProxy initialization, so it's ready to use at the end of this method
 	 * (otherwise, catch exception). This method is launched on the remote machine (if there is one)
+	 * 
+	 * ZAP accepts connections on its port before its API is usable, so ZAP is ready when the API
+	 * answers. The API is tried again after a short delay, doubled after each failure.
 	 *   
 	 * @param timeout the time in sec to try to connect at zap proxy. 
 	 * @param listener the listener to display log during the job execution in jenkins
+	 * @return the time in milliseconds ZAP took to be ready
 	 * @see <a href="https://groups.google.com/forum/#!topic/zaproxy-develop/gZxYp8Og960">
 	 * 		https://groups.google.com/forum/#!topic/zaproxy-develop/gZxYp8Og960</a>
 	 */
-	private void waitForSuccessfulConnectionToZap(int timeout, BuildListener listener) {
+	private long waitForSuccessfulConnectionToZap(int timeout, BuildListener listener) {
 		int timeoutInMs = getMilliseconds(timeout);
-		int connectionTimeoutInMs = timeoutInMs;
-		int pollingIntervalInMs = getMilliseconds(1);
-		boolean connectionSuccessful = false;
+		int pollingIntervalInMs = MIN_READINESS_INTERVAL_IN_MS;
 		long startTime = System.currentTimeMillis();
-		Socket socket = null;
-		do {
+		ClientApi zapClientAPI = PooledClientApi.getInstance(zapProxyHost, zapProxyPort);
+		
+		while (true) {
 			try {
-				socket = new Socket();
-				socket.connect(new InetSocketAddress(zapProxyHost, zapProxyPort), connectionTimeoutInMs);
-				connectionSuccessful = true;
-			} catch (SocketTimeoutException ignore) {
-				listener.error(ExceptionUtils.getStackTrace(ignore));
-				throw new BuildException("Unable to connect to ZAP's proxy after " + timeout + " seconds.");
+				zapClientAPI.core.version();
+				return System.currentTimeMillis() - startTime;
+			} catch (ClientApiException ignore) {
+				long ellapsedTime = System.currentTimeMillis() - startTime;
+				if (ellapsedTime >= timeoutInMs) {
+					listener.error(ExceptionUtils.getStackTrace(ignore));
+					throw new BuildException("Unable to connect to ZAP's API after " + timeout + " seconds.");
+				}
 				
-			} catch (IOException ignore) {
 				// and keep trying but wait some time first...
 				try {
-					Thread.sleep(pollingIntervalInMs);
+					Thread.sleep(Math.min(pollingIntervalInMs, timeoutInMs - ellapsedTime));
 				} catch (InterruptedException e) {
 					listener.error(ExceptionUtils.getStackTrace(ignore));
 					throw new BuildException("The task was interrupted while sleeping between connection polling.", e);
 				}
-
-				long ellapsedTime = System.currentTimeMillis() - startTime;
-				if (ellapsedTime >= timeoutInMs) {
-					listener.error(ExceptionUtils.getStackTrace(ignore));
-					throw new BuildException("Unable to connect to ZAP's proxy after " + timeout + " seconds.");
-				}
-				connectionTimeoutInMs = (int) (timeoutInMs - ellapsedTime);
-			} finally {
-				if(socket != null) {
-					try {
-						socket.close();
-					} catch (IOException e) {
-						listener.error(ExceptionUtils.getStackTrace(e));
-					}
-				}
+				pollingIntervalInMs = Math.min(MAX_READINESS_INTERVAL_IN_MS, pollingIntervalInMs * 2);
 			}
-		} while (!connectionSuccessful);
+		}
 	}
 	
 	/**
@@ -486,6 +814,168 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 		return seconds * MILLISECONDS_IN_SECOND;
 	}
 	
+	/**
+	 * Generates security reports for all the chosen formats. Reports are saved into build's workspace.
+	 * The passive scan must be waited for first, so that all the reports contain the same alerts, then
+	 * the reports are generated at the same time.
+	 * When the scan is distributed, only the xml report is saved, it merges the sites of all the nodes:
+	 * the reports of the other formats can't be merged.
+	 * ZAP doesn't know the alerts carried over from the previous build, they are listed in a report 
+	 * of their own.
+	 * 
+	 * @param listener the listener to display log during the job execution in jenkins
+	 * @param workspace a {@link FilePath} representing the build's workspace
+	 * @param clientApi the ZAP client API to call method
+	 * @param nodes the other ZAP nodes of a distributed scan by host:port, empty if there is none
+	 * @param carriedAlerts the alerts carried over from the previous build
+	 * @throws ClientApiException 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void saveReports(final BuildListener listener, final FilePath workspace, final ClientApi clientApi, 
+			final Map<String, PooledClientApi> nodes, List<ZAPAlertIndex.Alert> carriedAlerts) throws IOException, InterruptedException, ClientApiException {
+		
+		List<String> zapVersions = new ArrayList<String>();
+		zapVersions.add(statusToString(clientApi.core.version()));
+		for (ClientApi node : nodes.values())
+			zapVersions.add(statusToString(node.core.version()));
+		
+		final String dateStr = new SimpleDateFormat ("yyyy-MM-dd HH-mm-ss").format(new Date()); 
+		List<ZAPreport> reports = getReports(listener, zapVersions, !nodes.isEmpty());
+		
+		if (!carriedAlerts.isEmpty())
+			saveCarriedAlerts(listener, workspace, carriedAlerts, dateStr);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(reports.size());
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (final ZAPreport report : reports) {
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						if (!nodes.isEmpty())
+							saveMergedReport((ZAPreportXML)report, listener, workspace, clientApi, nodes, dateStr);
+						else
+							saveReport(report, listener, workspace, clientApi, dateStr);
+						return null;
+					}
+				}));
+			}
+			
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof ClientApiException)
+						throw (ClientApiException)e.getCause();
+					throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Lists the alerts carried over from the previous build in a text report, one alert per line: 
+	 * risk, plugin id and url.
+	 */
+	private void saveCarriedAlerts(BuildListener listener, FilePath workspace, List<ZAPAlertIndex.Alert> carriedAlerts, 
+			String dateStr) throws IOException, InterruptedException {
+		
+		StringBuilder report = new StringBuilder();
+		for (ZAPAlertIndex.Alert alert : carriedAlerts)
+			report.append(alert.getRisk()).append(' ').append(alert.getPluginId()).append(' ').append(alert.getUrl()).append('\n');
+		
+		FilePath reportsFile = workspace.child(String.format("%s_%s_carried-over.txt", REPORT_PREFIX, dateStr));
+		reportsFile.write(report.toString(), "UTF-8");
+		listener.getLogger().println("File ["+ reportsFile.getRemote() +"] saved, alerts carried over from the previous build");
+	}
+	
+	/**
+	 * @param zapVersions the versions of the ZAP nodes giving the reports
+	 * @param merged true if the reports of several ZAP nodes are merged, which only the xml report can be
+	 * @return the reports of the chosen formats which all the ZAP nodes can give, the xml one if the reports are merged, 
+	 * the html one if there is none
+	 */
+	private List<ZAPreport> getReports(BuildListener listener, List<String> zapVersions, boolean merged) {
+		Map<String, ZAPreport> reportsByFormat = ZAPreportCollection.getInstance().getMapFormatReport();
+		List<ZAPreport> reports = new ArrayList<ZAPreport>();
+		
+		if (reportFormats != null) {
+			for (String format : reportFormats.split(";|,")) {
+				ZAPreport report = reportsByFormat.get(format.trim().toLowerCase());
+				if (report != null && merged && !(report instanceof ZAPreportXML))
+					listener.getLogger().println("Report format [" + format.trim() + "] can't merge the alerts of several ZAP nodes, skipped");
+				else if (report != null && !isSupportedBy(report, zapVersions))
+					listener.getLogger().println("Report format [" + format.trim() + "] needs a more recent ZAP than " + zapVersions + ", skipped");
+				else if (report != null && !reports.contains(report))
+					reports.add(report);
+				else if (report == null && format.trim().length() > 0)
+					listener.getLogger().println("Unknown report format [" + format.trim() + "]");
+			}
+		}
+		
+		if (reports.isEmpty())
+			reports.add(reportsByFormat.get(merged ? "xml" : "html"));
+		
+		return reports;
+	}
+	
+	private static boolean isSupportedBy(ZAPreport report, List<String> zapVersions) {
+		for (String zapVersion : zapVersions) {
+			if (!report.isSupportedBy(zapVersion))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Wait for the passive scan of the ZAP of the build and of the other nodes. The wait ends with 
+	 * the time budget of the scan, and after {@value #MAX_PASSIVE_SCAN_WAIT_IN_MS} ms at most.
+	 */
+	private void waitForPassiveScans(BuildListener listener, ClientApi clientApi, Map<String, PooledClientApi> nodes) 
+			throws ClientApiException, InterruptedException {
+		
+		long passiveScanDeadline = System.currentTimeMillis() + MAX_PASSIVE_SCAN_WAIT_IN_MS;
+		if (scanDeadline > 0)
+			passiveScanDeadline = Math.min(passiveScanDeadline, scanDeadline);
+		
+		waitForPassiveScan(listener, clientApi, passiveScanDeadline);
+		for (ClientApi node : nodes.values())
+			waitForPassiveScan(listener, node, passiveScanDeadline);
+	}
+	
+	/**
+	 * Wait until ZAP has passively scanned all the recorded messages, so that no alert is added anymore,
+	 * or until the deadline. The reports miss the alerts of the records left.
+	 * 
+	 * @param listener the listener to display log during the job execution in jenkins
+	 * @param clientApi the ZAP client API to call method
+	 * @param deadline the time at which to stop waiting
+	 * @throws ClientApiException 
+	 * @throws InterruptedException
+	 */
+	private void waitForPassiveScan(BuildListener listener, ClientApi clientApi, long deadline) throws ClientApiException, InterruptedException {
+		int pollingIntervalInMs = MIN_READINESS_INTERVAL_IN_MS;
+		String recordsToScan = statusToString(clientApi.pscan.recordsToScan());
+		
+		if (!"0".equals(recordsToScan))
+			listener.getLogger().println("Wait for the passive scan of " + recordsToScan + " record(s)");
+		
+		while (!"0".equals(recordsToScan)) {
+			long timeLeft = deadline - System.currentTimeMillis();
+			if (timeLeft <= 0) {
+				listener.getLogger().println("Passive scan not finished in time, the reports miss the alerts of " + recordsToScan + " record(s)");
+				return;
+			}
+			
+			Thread.sleep(Math.min(pollingIntervalInMs, timeLeft));
+			pollingIntervalInMs = Math.min(MAX_READINESS_INTERVAL_IN_MS, pollingIntervalInMs * 2);
+			recordsToScan = statusToString(clientApi.pscan.recordsToScan());
+		}
+	}
+	
 	/**
 	 * Generates security report for one format. Reports are saved into build's workspace.
 	 * 
@@ -493,50 +983,186 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 	 * @param listener the listener to display log during the job execution in jenkins
 	 * @param workspace a {@link FilePath} representing the build's workspace
 	 * @param clientApi the ZAP client API to call method
+	 * @param dateStr the date of the reports, in their file name
 	 * @throws ClientApiException 
 	 * @throws IOException
+	 * @throws InterruptedException
 	 */
 	private void saveReport(ZAPreport reportFormat, BuildListener listener, FilePath workspace, 
-			ClientApi clientApi) throws IOException, ClientApiException {
+			ClientApi clientApi, String dateStr) throws IOException, InterruptedException, ClientApiException {
+		
+		String fullFileName = String.format("%s_%s.%s", REPORT_PREFIX, dateStr, reportFormat.getFormat());
+		FilePath reportsFile = workspace.child(fullFileName);
+		reportFormat.writeReport(clientApi, API_KEY, reportsFile);
+		listener.getLogger().println("File ["+ reportsFile.getRemote() +"] saved");
+	}
+	
+	/**
+	 * Generates one xml report with the alerts of the ZAP of the build and of the other nodes.
+	 */
+	private void saveMergedReport(ZAPreportXML reportFormat, BuildListener listener, FilePath workspace, 
+			ClientApi clientApi, Map<String, PooledClientApi> nodes, String dateStr) throws IOException, InterruptedException, ClientApiException {
+		
+		List<ClientApi> clientApis = new ArrayList<ClientApi>();
+		clientApis.add(clientApi);
+		clientApis.addAll(nodes.values());
 		
-		String dateStr = new SimpleDateFormat ("yyyy-MM-dd HH-mm-ss").format(new Date()); 
 		final String fullFileName = String.format("%s_%s.%s", REPORT_PREFIX, dateStr, reportFormat.getFormat());
-		File reportsFile = new File(workspace.getRemote(), fullFileName);
-		FileUtils.writeByteArrayToFile(reportsFile, reportFormat.generateReport(clientApi, API_KEY));
-		listener.getLogger().println("File ["+ reportsFile.getAbsolutePath() +"] saved");
+		FilePath reportsFile = workspace.child(fullFileName);
+		reportFormat.writeMergedReport(clientApis, API_KEY, reportsFile);
+		listener.getLogger().println("File ["+ reportsFile.getRemote() +"] saved, merged from " + clientApis.size() + " ZAP node(s)");
 	}
 
 	public boolean executeZAP(FilePath workspace, BuildListener listener) 
 	{
-		ClientApi zapClientAPI = new ClientApi(zapProxyHost, zapProxyPort, false);
+		PooledClientApi zapClientAPI = PooledClientApi.getInstance(zapProxyHost, zapProxyPort);
+		long callCountBefore = zapClientAPI.getCallCount();
+		long callTimeBefore = zapClientAPI.getCallTimeInMs();
 		boolean buildSuccess = true;
+		// The scan options are global to ZAP, they must not leak to the next builds using it
+		ZAPScanOptions scanOptions = new ZAPScanOptions(zapClientAPI, API_KEY);
+		ZAPSessionSnapshot snapshot = null;
+		// Copy of the snapshot loaded in ZAP, deleted when the build ends
+		File sessionCopy = null;
 		
 		try 
 		{
+			String invalidSetting = checkNumbers();
+			if (invalidSetting != null) {
+				listener.error(invalidSetting);
+				return false;
+			}
+			this.scanDeadline = getTimeBudgetInMs() > 0 ? System.currentTimeMillis() + getTimeBudgetInMs() : 0;
+			
+			snapshot = getSessionSnapshot(listener, workspace);
+			boolean warmStart = snapshot != null && snapshot.isAvailable();
+			if (warmStart) {
+				// ZAP writes to the session it loads, the snapshot must stay as it was saved
+				sessionCopy = snapshot.copyForBuild();
+				zapClientAPI.core.loadSession(API_KEY, sessionCopy.getAbsolutePath());
+				listener.getLogger().println("Load a copy of the session [" + snapshot.getSessionFile().getAbsolutePath() + "], the crawl is skipped");
+			}
+			
 			List<String> urls = getTargetUrls(listener, zapClientAPI);
 			this.contextId = createContext(listener, zapClientAPI, urls);
 			
 			if (authentication)
 			{
-				setUpAuthenticationMethod(listener, zapClientAPI);
+				setUpAuthenticationMethod(listener, zapClientAPI, contextId);
 				this.userId = setUpUser(listener, zapClientAPI, "username", "password", contextId);
 			}
 			
-			if (spiderURL)
-				spider(listener, zapClientAPI, urls);
-			
-			if (ajaxSpiderURL)
-				ajaxSpider(listener, zapClientAPI, urls);
-			
 			if (scanURL) {				
 				listener.getLogger().println("Scan the site [" + targetURL + "]");
-				scanURL(urls, listener, zapClientAPI);
 			} else {
 				listener.getLogger().println("Skip scanning the site [" + targetURL + "]");
 			}
 			
-			ZAPreport report = ZAPreportCollection.getInstance().getMapFormatReport().get("html");
-			saveReport(report, listener, workspace, zapClientAPI);
+			ZAPScanProfile profile = ZAPScanProfile.fromName(scanProfile);
+			if (scanURL && profile != null)
+				profile.apply(zapClientAPI, API_KEY, ZAPUtil.isLocalIP(zapProxyHost) ? workspace : null, scanOptions, listener);
+			if (scanURL)
+				applyHostLimits(listener, scanOptions);
+			
+			ZAPQualityGate qualityGate = getQualityGate();
+			if (qualityGate.isEnabled())
+				listener.getLogger().println("Quality gate [" + qualityGate + "]");
+			
+			ZAPAlertReader alertReader = new ZAPAlertReader(zapClientAPI, new ZAPAlertIndex());
+			Map<String, PooledClientApi> nodes = getZapNodeClients(listener);
+			// The alerts of all the nodes go to the same index
+			List<ZAPAlertReader> nodeAlertReaders = new ArrayList<ZAPAlertReader>();
+			for (PooledClientApi node : nodes.values())
+				nodeAlertReaders.add(new ZAPAlertReader(node, alertReader.getIndex()));
+			ZAPScanHistory history = null;
+			Map<String, ZAPScanHistory.Endpoint> endpoints = null;
+			Map<String, ZAPScanHistory.Endpoint> changedEndpoints = null;
+			// Keys of the changed endpoints left unscanned, null if nothing is known about what was scanned
+			List<String> unscannedEndpoints = null;
+			
+			boolean prioritized = scanURL && getTimeBudgetInMs() > 0;
+			int shardCount = scanURL ? parsePositiveInt(scanShards) : 0;
+			if (getTimeBudgetInMs() > 0)
+				listener.getLogger().println(String.format("Time budget of %s minute(s)", timeBudgetInMinutes.trim()));
+			
+			if (!nodes.isEmpty()) {
+				if (snapshot != null || incrementalScan || prioritized || shardCount > 1)
+					listener.getLogger().println("The scan is distributed, no session snapshot, incremental scan, endpoint priorities or scan shards");
+				runDistributedScan(listener, zapClientAPI, urls, alertReader, qualityGate, nodes, nodeAlertReaders);
+			} else if (snapshot == null && !(incrementalScan && scanURL) && !prioritized && shardCount <= 1) {
+				runScanPipeline(listener, zapClientAPI, urls, alertReader, qualityGate, true, true, null, contextId, userId);
+			} else {
+				// Crawl everything first, the session is saved and the active scan depends on what the crawl found
+				boolean crawled = warmStart || runScanPipeline(listener, zapClientAPI, urls, alertReader, qualityGate, true, false, null, contextId, userId).size() == urls.size();
+				
+				if (crawled && snapshot != null && !warmStart) {
+					snapshot.prepareSave();
+					zapClientAPI.core.saveSession(API_KEY, snapshot.getSessionFile().getAbsolutePath(), "true");
+					listener.getLogger().println("Session saved [" + snapshot.getSessionFile().getAbsolutePath() + "]");
+					// ZAP goes on with the saved session, the active scan must not change the snapshot:
+					// the snapshot is closed before it's copied, so that the copy is complete
+					zapClientAPI.core.newSession(API_KEY, "", "true");
+					sessionCopy = snapshot.copyForBuild();
+					zapClientAPI.core.loadSession(API_KEY, sessionCopy.getAbsolutePath());
+				}
+				
+				if (crawled && !(incrementalScan && scanURL) && !prioritized && shardCount > 1) {
+					runShardedScan(listener, zapClientAPI, urls, alertReader, qualityGate, shardCount);
+				} else if (crawled && !(incrementalScan && scanURL) && !prioritized) {
+					runScanPipeline(listener, zapClientAPI, urls, alertReader, qualityGate, false, true, null, contextId, userId);
+				} else if (crawled) {
+					history = incrementalScan ? new ZAPScanHistory(workspace) : null;
+					endpoints = ZAPScanHistory.readEndpoints(zapClientAPI, urls);
+					
+					if (history != null && history.isEmpty() && !prioritized) {
+						// No previous build to compare with, the whole sites are scanned
+						changedEndpoints = endpoints;
+						listener.getLogger().println(String.format("%d endpoint(s) found, no history of a previous build", endpoints.size()));
+						if (runScanPipeline(listener, zapClientAPI, urls, alertReader, qualityGate, false, true, null, contextId, userId).size() == urls.size())
+							unscannedEndpoints = new ArrayList<String>();
+					} else {
+						changedEndpoints = history == null || history.isEmpty() ? endpoints : history.getChangedEndpoints(endpoints);
+						listener.getLogger().println(String.format("%d endpoint(s) found, %d to scan", endpoints.size(), changedEndpoints.size()));
+						
+						// The most valuable endpoints first, in case the time budget runs out
+						List<String> keys = prioritized ? ZAPScanHistory.rankByPriority(changedEndpoints, history) : new ArrayList<String>(changedEndpoints.keySet());
+						List<String> scanned = runScanPipeline(listener, zapClientAPI, keys, alertReader, qualityGate, false, true, changedEndpoints, contextId, userId);
+						
+						unscannedEndpoints = new ArrayList<String>(keys);
+						unscannedEndpoints.removeAll(scanned);
+						if (prioritized)
+							listener.getLogger().println(String.format("Coverage: %d of %d endpoint(s) actively scanned (%d%%)", scanned.size(), keys.size(), 
+									keys.isEmpty() ? 100 : scanned.size() * 100 / keys.size()));
+					}
+				}
+			}
+			
+			waitForPassiveScans(listener, zapClientAPI, nodes);
+			
+			alertReader.readNewAlerts(true);
+			for (ZAPAlertReader nodeAlertReader : nodeAlertReaders)
+				nodeAlertReader.readNewAlerts(true);
+			// Carried over before the reports are saved, so that they list all the alerts of the build
+			List<ZAPAlertIndex.Alert> carriedAlerts = Collections.emptyList();
+			if (history != null && endpoints != null) {
+				carriedAlerts = history.carryOverAlerts(alertReader.getIndex(), endpoints, changedEndpoints);
+				listener.getLogger().println(carriedAlerts.size() + " alert(s) of unchanged endpoints carried over from the previous build");
+			}
+			
+			saveReports(listener, workspace, zapClientAPI, nodes, carriedAlerts);
+			
+			// Endpoints left unscanned by a stopped scan must be scanned by the next build
+			if (history != null && endpoints != null && unscannedEndpoints != null) {
+				Map<String, ZAPScanHistory.Endpoint> scannedEndpoints = new HashMap<String, ZAPScanHistory.Endpoint>(endpoints);
+				scannedEndpoints.keySet().removeAll(unscannedEndpoints);
+				history.save(scannedEndpoints, alertReader.getIndex());
+			}
+			listener.getLogger().println("Alerts = " + alertReader.getIndex());
+			String failure = qualityGate.check(alertReader.getIndex());
+			if (failure != null) {
+				listener.error("Quality gate failed (" + failure + ")");
+				buildSuccess = false;
+			}
 			
 			listener.getLogger().println("Total alerts = " + zapClientAPI.core.numberOfAlerts("").toString(2));
 			listener.getLogger().println("Total messages = " + zapClientAPI.core.numberOfMessages("").toString(2));
@@ -545,26 +1171,41 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 			listener.error(ExceptionUtils.getStackTrace(e));
 			buildSuccess = false;
 		} finally {
+			scanOptions.restore(listener);
+			if (sessionCopy != null)
+				deleteSessionCopy(listener, zapClientAPI, snapshot, sessionCopy);
 			try {
 				stopZAP(zapClientAPI, listener);
 			} catch (ClientApiException e) {
 				listener.error(ExceptionUtils.getStackTrace(e));
 				buildSuccess = false;
 			}
+			
+			long callCount = zapClientAPI.getCallCount() - callCountBefore;
+			long callTime = zapClientAPI.getCallTimeInMs() - callTimeBefore;
+			listener.getLogger().println(String.format("ZAP API calls = %d (mean time %d ms)", callCount, callCount == 0 ? 0 : callTime / callCount));
 		}
 		return buildSuccess;
 	}
 	
 	/**
-	 * Converts the ZAP API status response to an integer
-	 *
-	 * @param response the ZAP API response code
-	 * @return the integer status of the ApiResponse
+	 * Close the copy of the session snapshot loaded by the build and delete its files. 
+	 * A copy which can't be deleted expires like the snapshots.
+	 * 
+	 * @param listener the listener to display log during the job execution in jenkins
+	 * @param zapClientAPI the client API to use ZAP API methods
 	 */
-	private int statusToInt(final ApiResponse response) {
-		return Integer.parseInt(((ApiResponseElement)response).getValue());
+	private void deleteSessionCopy(BuildListener listener, ClientApi zapClientAPI, ZAPSessionSnapshot snapshot, File sessionCopy) {
+		try {
+			zapClientAPI.core.newSession(API_KEY, "", "true");
+		} catch (ClientApiException e) {
+			listener.getLogger().println("Session copy [" + sessionCopy.getAbsolutePath() + "] not closed: " + e.getMessage());
+		}
+		
+		if (!snapshot.deleteCopy(sessionCopy))
+			listener.getLogger().println("Session copy [" + sessionCopy.getAbsolutePath() + "] not deleted, it will expire");
 	}
-
+	
 	/**
 	 * Converts the ZAP API status response to an String
 	 *
@@ -597,6 +1238,13 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 	{
 		String contextName = "context1";
 		
+		// A loaded session already contains the context
+		if (getContextNames(zapClientAPI).contains(contextName)) {
+			String contextId = ((ApiResponseSet)zapClientAPI.context.context(contextName)).getAttribute("id");
+			listener.getLogger().println(String.format("Reuse Context {contextName:%s, contextId:%s}", contextName, contextId));
+			return contextId;
+		}
+		
 		String contextId = extractContextId(zapClientAPI.context.newContext(API_KEY, contextName));
 
 		listener.getLogger().println(String.format("Created Context {contextName:%s, contextId:%s}", contextName, contextId));
@@ -607,6 +1255,39 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 		return contextId;
 	}
 	
+	/**
+	 * @return the names of the contexts of the session
+	 */
+	private List<String> getContextNames(ClientApi zapClientAPI) throws ClientApiException 
+	{
+		// [Default Context, context1]
+		String contextList = statusToString(zapClientAPI.context.contextList()).trim();
+		if (contextList.startsWith("[") && contextList.endsWith("]"))
+			contextList = contextList.substring(1, contextList.length() - 1);
+		
+		List<String> contextNames = new ArrayList<String>();
+		for (String contextName : contextList.split(","))
+			contextNames.add(contextName.trim());
+		
+		return contextNames;
+	}
+	
+	/**
+	 * @return the session snapshot of the build, null if the snapshots are disabled or ZAP isn't on the build node
+	 */
+	private ZAPSessionSnapshot getSessionSnapshot(BuildListener listener, FilePath workspace) 
+	{
+		if (!sessionSnapshot || sessionKey == null)
+			return null;
+		
+		if (!ZAPUtil.isLocalIP(zapProxyHost)) {
+			listener.getLogger().println("No session snapshot, ZAProxy doesn't run on the build node");
+			return null;
+		}
+		
+		return new ZAPSessionSnapshot(workspace, sessionKey);
+	}
+	
 	private List<String> getTargetUrls(BuildListener listener, ClientApi zapClientAPI) throws ClientApiException 
 	{
 		if (targetURL != null && targetURL.trim().length() > 0)
@@ -638,24 +1319,28 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 		List<String> includeURLsList = getIncludeURLsAsList();
 		includeURLsList.addAll(targetURLs);
 		
-		for (String url : includeURLsList)
+		List<String> regexes = ZAPUtil.buildContextRegexes(includeURLsList);
+		for (String regex : regexes)
 		{
-			url = "\\Q" + url + "\\E.*";
-			zapClientAPI.context.includeInContext(API_KEY, contextName, url);
-			listener.getLogger().println(String.format("URL [%s] include to Context [%s]", url, contextName));
+			zapClientAPI.context.includeInContext(API_KEY, contextName, regex);
+			listener.getLogger().println(String.format("URL [%s] include to Context [%s]", regex, contextName));
 		}
+		
+		listener.getLogger().println(String.format("%d URL(s) included to Context [%s] in %d call(s), %d call(s) saved", includeURLsList.size(), contextName, regexes.size(), includeURLsList.size() - regexes.size()));
 	}
 	
 	private void excludeUrlToContext(BuildListener listener, String contextName, ClientApi zapClientAPI) throws ClientApiException 
 	{
 		List<String> excludeURLsList = getExcludeURLsAsList();
 		
-		for (String url : excludeURLsList)
+		List<String> regexes = ZAPUtil.buildContextRegexes(excludeURLsList);
+		for (String regex : regexes)
 		{
-			url = "\\Q" + url + "\\E.*";
-			zapClientAPI.context.excludeFromContext(API_KEY, contextName, url);
-			listener.getLogger().println(String.format("URL [%s] exclude to Context [%s]", url, contextName));
+			zapClientAPI.context.excludeFromContext(API_KEY, contextName, regex);
+			listener.getLogger().println(String.format("URL [%s] exclude to Context [%s]", regex, contextName));
 		}
+		
+		listener.getLogger().println(String.format("%d URL(s) excluded from Context [%s] in %d call(s), %d call(s) saved", excludeURLsList.size(), contextName, regexes.size(), excludeURLsList.size() - regexes.size()));
 	}
 	
 	private List<String> getIncludeURLsAsList()
@@ -676,7 +1361,7 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 		return new ArrayList<String>(Arrays.asList(splits));
 	}
 	
-	private void setUpAuthenticationMethod(BuildListener listener, ClientApi zapClientAPI) throws ClientApiException, UnsupportedEncodingException
+	private void setUpAuthenticationMethod(BuildListener listener, ClientApi zapClientAPI, String contextId) throws ClientApiException, UnsupportedEncodingException
 	{
 		if (authenticationSteps == null)
 			return;
@@ -749,57 +1434,6 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 		return userId;
 	}
 	
-	private void spider(BuildListener listener, ClientApi zapClientAPI, List<String> urls)	throws ClientApiException, InterruptedException, UnsupportedEncodingException 
-	{	
-		for (String url : urls)
-		{
-			listener.getLogger().println(String.format("Start to spider the site [%s]", url));
-			
-			ApiResponse response;
-			if (authentication && authenticationSteps.size() > 0)
-				response = zapClientAPI.spider.scanAsUser(API_KEY, url, this.contextId, userId, "0", "");
-			else
-				response = zapClientAPI.spider.scan(API_KEY, url, "", "");
-			
-			String scanId = this.statusToString(response);
-			while (!isScanFinished(zapClientAPI, scanId, true)) 
-			{
-				listener.getLogger().println("Status spider = " + statusToInt(zapClientAPI.spider.status("")) + "%");
-				listener.getLogger().println("Alerts number = " + zapClientAPI.core.numberOfAlerts("").toString(2));
-				Thread.sleep(1000);
-			}
-			
-			listener.getLogger().println(String.format("Fininsh spider the site [%s]", url));
-		}
-	}
-	
-	private void ajaxSpider(BuildListener listener, ClientApi zapClientAPI, List<String> urls) throws ClientApiException, InterruptedException
-	{
-		String fieldValues = getFieldValues();
-		
-		for (String url : urls)
-		{
-			listener.getLogger().println(String.format("Start to ajaxSpider the site [%s]", url));
-			
-			Map<String, String> localHashMap = new HashMap<String, String>();
-		    localHashMap.put("apikey", API_KEY);
-		    localHashMap.put("url", url);
-		    localHashMap.put("inScope", "true");
-		    localHashMap.put("fieldValues", fieldValues);
-		    localHashMap.put("clickElements", clickElements);
-		    
-			zapClientAPI.callApi("ajaxSpider", "action", "scan", localHashMap);
-			
-			while ("running".equalsIgnoreCase(statusToString(zapClientAPI.ajaxSpider.status()))) { 
-			    listener.getLogger().println("Status spider = " + statusToString(zapClientAPI.ajaxSpider.status()));
-				listener.getLogger().println("Alerts number = " + zapClientAPI.core.numberOfAlerts("").toString(2));
-				Thread.sleep(2500);
-			} 
-			
-			listener.getLogger().println(String.format("Fininsh ajaxSpider the site [%s]", url));
-		}
-	}
-	
 	private String getFieldValues()
 	{
 		if (this.ajaxSpiderFieldValues == null || this.ajaxSpiderFieldValues.size() == 0)
@@ -821,64 +1455,313 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 	}
 	
 	/**
-	 * Scan all pages found at url and raised actives alerts
+	 * Spider, ajax spider and scan all pages found at urls and raised actives alerts.
+	 * Each url goes through the enabled stages on its own, so a site can be scanned while
+	 * another one is still crawled. Up to maxConcurrentScans spiders and scans are running 
+	 * at the same time in ZAP.
 	 *
-	 * @param url the url to scan
 	 * @param listener the listener to display log during the job execution in jenkins
 	 * @param zapClientAPI the client API to use ZAP API methods
+	 * @param urls the urls to spider and scan, or the keys of the endpoints
+	 * @param alertReader reads the alerts while the scans are running
+	 * @param qualityGate stops the scans when it fails
+	 * @param spider run the spider and the ajax spider if they are enabled
+	 * @param scan run the active scan if it's enabled
+	 * @param endpoints the endpoints to scan alone (not recursively) by key, the other urls are scanned recursively
+	 * @param contextId the context of the urls in this ZAP
+	 * @param userId the user of the authentication in this ZAP, null without authentication
+	 * @return the urls (or endpoint keys) which went through all the stages, all of them unless 
+	 * the scans were stopped because of the quality gate or the time budget
 	 * @throws ClientApiException
 	 * @throws InterruptedException 
 	 */
-	private void scanURL(final List<String> urls, BuildListener listener, ClientApi zapClientAPI) 
+	private List<String> runScanPipeline(BuildListener listener, final ClientApi zapClientAPI, List<String> urls, ZAPAlertReader alertReader, ZAPQualityGate qualityGate,
+			boolean spider, boolean scan, final Map<String, ZAPScanHistory.Endpoint> endpoints, final String contextId, final String userId) 
 			throws ClientApiException, InterruptedException {
-		// Method signature : scan(String apikey, String url, String recurse, String inscopeonly, String scanpolicyname, String method, String postdata)
-		// Use a default policy if chosenPolicy is null or empty
-		for (String url : urls)
+		final String fieldValues = getFieldValues();
+		final ZAPScanProfile profile = ZAPScanProfile.fromName(scanProfile);
+		
+		ScanPipeline pipeline = new ScanPipeline(zapClientAPI, listener, maxConcurrentScans, spider && spiderURL, spider && ajaxSpiderURL, scan && scanURL, new ScanPipeline.ScanLauncher() 
 		{
-			ApiResponse response;
-			if (authentication && authenticationSteps.size() > 0)
-				response = zapClientAPI.ascan.scanAsUser(API_KEY, url, contextId, userId, "true", "Default policy", "", "");
-			else
-				response = zapClientAPI.ascan.scan(API_KEY, url, "true", "false", "", "", "");
-			
-			String scanId = this.statusToString(response);
-			
-			// Wait for complete scanning (equal to 100)
-			// Method signature : status(String scanId)
-			while (!isScanFinished(zapClientAPI, scanId, false)) {
-				listener.getLogger().println("Status scan = " + statusToInt(zapClientAPI.ascan.status("")) + "%");
-				listener.getLogger().println("Alerts number = " + zapClientAPI.core.numberOfAlerts("").toString(2));
-				listener.getLogger().println("Messages number = " + zapClientAPI.core.numberOfMessages("").toString(2));
-				Thread.sleep(5000);
+			@Override
+			public String startSpider(String url) throws ClientApiException 
+			{
+				ApiResponse response;
+				if (authentication && authenticationSteps.size() > 0)
+					response = zapClientAPI.spider.scanAsUser(API_KEY, url, contextId, userId, "0", "");
+				else
+					response = zapClientAPI.spider.scan(API_KEY, url, "", "");
+				
+				return statusToString(response);
+			}
+			
+			@Override
+			public void startAjaxSpider(String url) throws ClientApiException 
+			{
+				Map<String, String> localHashMap = new HashMap<String, String>();
+				localHashMap.put("apikey", API_KEY);
+				localHashMap.put("url", url);
+				localHashMap.put("inScope", "true");
+				localHashMap.put("fieldValues", fieldValues);
+				localHashMap.put("clickElements", clickElements);
+				
+				zapClientAPI.callApi("ajaxSpider", "action", "scan", localHashMap);
+			}
+			
+			@Override
+			public String startActiveScan(String url) throws ClientApiException 
+			{
+				// Method signature : scan(String apikey, String url, String recurse, String inscopeonly, String scanpolicyname, String method, String postdata)
+				String recurse = "true";
+				String method = "";
+				String postData = "";
+				ZAPScanHistory.Endpoint endpoint = endpoints == null ? null : endpoints.get(url);
+				if (endpoint != null) {
+					url = endpoint.getUrl();
+					recurse = "false";
+					method = endpoint.getMethod();
+					postData = endpoint.getPostData();
+				}
+				
+				ApiResponse response;
+				if (authentication && authenticationSteps.size() > 0)
+					response = zapClientAPI.ascan.scanAsUser(API_KEY, url, contextId, userId, recurse, profile == null ? "Default policy" : profile.getPolicyName(), method, postData);
+				else
+					response = zapClientAPI.ascan.scan(API_KEY, url, recurse, "false", profile == null ? "" : profile.getPolicyName(), method, postData);
+				
+				return statusToString(response);
+			}
+			
+			@Override
+			public void stopAll() throws ClientApiException 
+			{
+				stopAllScans(zapClientAPI);
+			}
+		});
+		pipeline.setAlertReader(alertReader, qualityGate.isEnabled() ? qualityGate : null);
+		pipeline.setMaxHosts(parsePositiveInt(maxConcurrentHosts));
+		pipeline.setDeadline(scanDeadline);
+		
+		pipeline.run(urls);
+		return pipeline.getFinishedTargets();
+	}
+	
+	/**
+	 * Split the crawled site tree into shards of about the same number of requests, and actively scan 
+	 * each shard with its own scan, as many at the same time as the concurrent scans allow.
+	 * The folder of a shard is scanned recursively and the requests of its path are scanned one by one,
+	 * with their method and post data, as the unsharded scan would scan them.
+	 * 
+	 * @param shardCount the number of shards wanted
+	 * @throws ClientApiException
+	 * @throws InterruptedException 
+	 */
+	private void runShardedScan(BuildListener listener, ClientApi zapClientAPI, List<String> urls, ZAPAlertReader alertReader, 
+			ZAPQualityGate qualityGate, int shardCount) throws ClientApiException, InterruptedException {
+		
+		ZAPSiteTree tree = ZAPSiteTree.read(zapClientAPI, urls);
+		List<ZAPSiteTree.Shard> shards = tree.split(shardCount);
+		listener.getLogger().println(String.format("Site tree of %d request(s) split into %d shard(s)", tree.getRequestCount(), shards.size()));
+		
+		List<String> shardUrls = new ArrayList<String>();
+		// Urls without query whose requests are scanned one by one
+		Set<String> requestUrls = new HashSet<String>();
+		for (ZAPSiteTree.Shard shard : shards) {
+			if (shard.getFolderUrl() != null)
+				shardUrls.add(shard.getFolderUrl());
+			requestUrls.addAll(shard.getRequestUrls());
+			listener.getLogger().println(String.format("Shard [%s]%s: %d request(s)", shard.getUrl(), shard.isRecursive() ? "" : " alone", shard.getRequestCount()));
+		}
+		
+		Map<String, ZAPScanHistory.Endpoint> requests = new HashMap<String, ZAPScanHistory.Endpoint>();
+		if (!requestUrls.isEmpty()) {
+			for (ZAPScanHistory.Endpoint endpoint : ZAPScanHistory.readEndpoints(zapClientAPI, urls).values()) {
+				if (requestUrls.contains(endpoint.getBaseUrl())) {
+					shardUrls.add(endpoint.getKey());
+					requests.put(endpoint.getKey(), endpoint);
+				}
 			}
 		}
+		
+		runScanPipeline(listener, zapClientAPI, shardUrls, alertReader, qualityGate, false, true, requests, contextId, userId);
 	}
 	
-	private boolean isScanFinished(ClientApi zapClientAPI, String scanId, boolean spdier) throws ClientApiException
-	{
-		ApiResponseList response;
+	/**
+	 * Stop the spiders and scans running in a ZAP.
+	 * 
+	 * @param zapClientAPI the client API to use ZAP API methods
+	 * @throws ClientApiException
+	 */
+	private void stopAllScans(ClientApi zapClientAPI) throws ClientApiException {
+		zapClientAPI.spider.stopAllScans(API_KEY);
+		zapClientAPI.ascan.stopAllScans(API_KEY);
+		if (ajaxSpiderURL)
+			zapClientAPI.ajaxSpider.stop(API_KEY);
+	}
+	
+	/**
+	 * Stop the spiders and scans running in the ZAP of the build and in the other nodes, 
+	 * e.g. when the scan is cancelled: they go on running in ZAP when the thread of the scan is interrupted.
+	 * 
+	 * @param listener the listener to display log during the job execution in jenkins
+	 */
+	private void stopAllScans(BuildListener listener) {
+		Map<String, PooledClientApi> clientApis = new LinkedHashMap<String, PooledClientApi>();
+		clientApis.put(zapProxyHost + ":" + zapProxyPort, PooledClientApi.getInstance(zapProxyHost, zapProxyPort));
+		clientApis.putAll(getZapNodeClients(listener));
 		
-		if (spdier)
-			response = (ApiResponseList)zapClientAPI.spider.scans();
-		else
-			response = (ApiResponseList)zapClientAPI.ascan.scans();
+		for (Map.Entry<String, PooledClientApi> clientApi : clientApis.entrySet()) {
+			try {
+				stopAllScans(clientApi.getValue());
+				listener.getLogger().println("Scans of ZAP node [" + clientApi.getKey() + "] stopped");
+			} catch (ClientApiException e) {
+				listener.getLogger().println("Scans of ZAP node [" + clientApi.getKey() + "] not stopped: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Share the urls between the ZAP of the build and the other nodes, round robin, and run the spiders 
+	 * and scans of all the shares at the same time. Each node starts a new session with its own context 
+	 * and user. The alert readers of the nodes share the index, so the quality gate counts the alerts 
+	 * of all the nodes: when it fails, the pipeline of each node stops the scans of its node at its next poll.
+	 * 
+	 * @param nodes the other ZAP nodes by host:port
+	 * @param nodeAlertReaders the alert readers of the nodes, in the same order
+	 * @throws ClientApiException
+	 * @throws InterruptedException 
+	 * @throws IOException 
+	 */
+	private void runDistributedScan(final BuildListener listener, final ClientApi zapClientAPI, List<String> urls, final ZAPAlertReader alertReader, 
+			final ZAPQualityGate qualityGate, Map<String, PooledClientApi> nodes, List<ZAPAlertReader> nodeAlertReaders) 
+			throws ClientApiException, InterruptedException, IOException {
 		
-		List<ApiResponse> items = response.getItems();
+		List<List<String>> shares = new ArrayList<List<String>>();
+		for (int i = 0; i <= nodes.size(); i++)
+			shares.add(new ArrayList<String>());
+		for (int i = 0; i < urls.size(); i++)
+			shares.get(i % shares.size()).add(urls.get(i));
 		
-		for (ApiResponse item : items)
-		{
-			ApiResponseSet itemSet = (ApiResponseSet)item;
-			if (!scanId.equals(itemSet.getAttribute("id")))
-				continue;
+		ExecutorService executor = Executors.newFixedThreadPool(shares.size());
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
 			
-			if ("FINISHED".equalsIgnoreCase(itemSet.getAttribute("state")))
-				return true;
+			final List<String> share = shares.get(0);
+			listener.getLogger().println(String.format("ZAP node [%s:%d]: %d URL(s)", zapProxyHost, zapProxyPort, share.size()));
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					if (!share.isEmpty())
+						runScanPipeline(listener, zapClientAPI, share, alertReader, qualityGate, true, true, null, contextId, userId);
+					return null;
+				}
+			}));
+			
+			int i = 0;
+			for (final Map.Entry<String, PooledClientApi> node : nodes.entrySet()) {
+				final List<String> nodeShare = shares.get(i + 1);
+				final ZAPAlertReader nodeAlertReader = nodeAlertReaders.get(i++);
+				listener.getLogger().println(String.format("ZAP node [%s]: %d URL(s)", node.getKey(), nodeShare.size()));
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						scanOnNode(listener, node.getValue(), nodeShare, nodeAlertReader, qualityGate);
+						return null;
+					}
+				}));
+			}
 			
-			if ("100".equals(itemSet.getAttribute("progress")))
-				return true;
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof ClientApiException)
+						throw (ClientApiException)e.getCause();
+					throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Prepare another ZAP node like the ZAP of the build and run the spiders and scans of its urls.
+	 * The session of the node is reset even if it has no url, so that its reports are empty.
+	 * The scan options set on the node are restored once its scans are over.
+	 */
+	private void scanOnNode(BuildListener listener, ClientApi node, List<String> urls, ZAPAlertReader alertReader, ZAPQualityGate qualityGate) 
+			throws ClientApiException, InterruptedException, UnsupportedEncodingException {
+		
+		node.core.newSession(API_KEY, "", "");
+		if (urls.isEmpty())
+			return;
+		
+		String nodeContextId = createContext(listener, node, urls);
+		String nodeUserId = null;
+		if (authentication) {
+			setUpAuthenticationMethod(listener, node, nodeContextId);
+			nodeUserId = setUpUser(listener, node, "username", "password", nodeContextId);
+		}
+		
+		ZAPScanOptions scanOptions = new ZAPScanOptions(node, API_KEY);
+		try {
+			ZAPScanProfile profile = ZAPScanProfile.fromName(scanProfile);
+			if (scanURL && profile != null)
+				profile.apply(node, API_KEY, null, scanOptions, listener);
+			if (scanURL)
+				applyHostLimits(listener, scanOptions);
+			
+			runScanPipeline(listener, node, urls, alertReader, qualityGate, true, true, null, nodeContextId, nodeUserId);
+		} finally {
+			scanOptions.restore(listener);
 		}
+	}
+	
+	/**
+	 * Set the number of threads per host and the delay between requests of the active scan from
+	 * the limits of the job. ZAP has no request rate setting, each thread waits the delay between 
+	 * two requests, so the delay giving a rate is threads * 1000 / rate. The delay is 1 ms at least,
+	 * as 0 would mean no limit: a higher rate is capped at threads * 1000 requests per second.
+	 * The options are restored with the ones of the profile when the build ends.
+	 * 
+	 * @param listener the listener to display log during the job execution in jenkins
+	 * @param scanOptions the options of ZAP changed by the build
+	 * @throws ClientApiException
+	 */
+	private void applyHostLimits(BuildListener listener, ZAPScanOptions scanOptions) throws ClientApiException {
+		int threads = parsePositiveInt(maxThreadsPerHost);
+		int requestsPerSecond = parsePositiveInt(maxRequestsPerSecond);
+		int hosts = parsePositiveInt(maxConcurrentHosts);
 		
-		return false;
+		if (threads == 0 && requestsPerSecond == 0 && hosts == 0)
+			return;
+		
+		if (threads > 0)
+			scanOptions.set("ThreadPerHost", threads);
+		else
+			threads = scanOptions.get("ThreadPerHost");
+		
+		if (requestsPerSecond > 0)
+			scanOptions.set("DelayInMs", Math.max(1, threads * MILLISECONDS_IN_SECOND / requestsPerSecond));
+		int delayInMs = scanOptions.get("DelayInMs");
+		
+		// A scan of several hosts must not exceed the limit either
+		if (hosts > 0)
+			scanOptions.set("HostPerScan", hosts);
+		
+		String rate = delayInMs > 0 ? String.format("%.1f", (double)threads * MILLISECONDS_IN_SECOND / delayInMs) : "unlimited";
+		listener.getLogger().println(String.format("Host limits: %d thread(s) per host, %d ms between requests, %s request(s) per second per host, %s host(s) at a time",
+				threads, delayInMs, rate, hosts > 0 ? String.valueOf(hosts) : "any"));
+	}
+	
+	/**
+	 * @return the number, 0 if blank
+	 */
+	private static int parsePositiveInt(String number) {
+		if (number == null || number.trim().length() == 0)
+			return 0;
+		return Math.max(0, Integer.parseInt(number.trim()));
 	}
 	
 	/**
@@ -896,7 +1779,11 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 			return;
 		}
 		
-		if (!zapProxyLocalLaunch || !ZAPUtil.isLocalIP(zapProxyHost))
+		if (zapProxyLeased)
+		{
+			listener.getLogger().println("Keep ZAProxy running for the next builds");
+		}
+		else if (!zapProxyLocalLaunch || !ZAPUtil.isLocalIP(zapProxyHost))
 		{
 			listener.getLogger().println("Reset ZAProxy");
 			//zapClientAPI.core.newSession(API_KEY, "", "");
@@ -944,6 +1831,51 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 			return null; 
 		}
 		
+		public ListBoxModel doFillScanProfileItems() {
+			ListBoxModel items = new ListBoxModel();
+			items.add("Default policy", "");
+			for (ZAPScanProfile profile : ZAPScanProfile.values())
+				items.add(profile.name(), profile.name());
+			return items;
+		}
+		
+		public FormValidation doCheckMaxHighAlerts(@QueryParameter String value) {
+			return checkNumberField("Max High Alerts", value);
+		}
+		
+		public FormValidation doCheckMaxMediumAlerts(@QueryParameter String value) {
+			return checkNumberField("Max Medium Alerts", value);
+		}
+		
+		public FormValidation doCheckMaxLowAlerts(@QueryParameter String value) {
+			return checkNumberField("Max Low Alerts", value);
+		}
+		
+		public FormValidation doCheckMaxThreadsPerHost(@QueryParameter String value) {
+			return checkNumberField("Max Threads Per Host", value);
+		}
+		
+		public FormValidation doCheckMaxRequestsPerSecond(@QueryParameter String value) {
+			return checkNumberField("Max Requests Per Second", value);
+		}
+		
+		public FormValidation doCheckMaxConcurrentHosts(@QueryParameter String value) {
+			return checkNumberField("Max Concurrent Hosts", value);
+		}
+		
+		public FormValidation doCheckTimeBudgetInMinutes(@QueryParameter String value) {
+			return checkNumberField("Time Budget (minutes)", value);
+		}
+		
+		public FormValidation doCheckScanShards(@QueryParameter String value) {
+			return checkNumberField("Scan Shards", value);
+		}
+		
+		private static FormValidation checkNumberField(String name, String value) {
+			String error = checkNumber(name, value);
+			return error == null ? FormValidation.ok() : FormValidation.error(error);
+		}
+		
 	}
 		
 	
@@ -954,7 +1886,7 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 	 * @author ludovic.roucoux
 	 *
 	 */
-	private static class WaitZAProxyInitCallable implements FileCallable<Void> {
+	private static class WaitZAProxyInitCallable implements FileCallable<Long> {
 
 		private static final long serialVersionUID = -313398999885177679L;
 		
@@ -966,9 +1898,62 @@ public class ZAProxy extends AbstractDescribableImpl<ZAProxy> implements Seriali
 			this.listener = listener;
 		}
 
+		@Override
+		public Long invoke(File f, VirtualChannel channel) {
+			return zaproxy.waitForSuccessfulConnectionToZap(TimeoutInSec, listener);
+		}
+		
+		@Override
+		public void checkRoles(RoleChecker checker) throws SecurityException {
+			// Nothing to do
+		}
+	}
+	
+	/**
+	 * This class allows to launch a method on a remote machine (if there is, otherwise, on a local machine).
+	 * The method launched is to check and reset a ZAProxy leased from the pool.
+	 */
+	private static class ResetZAProxyCallable implements FileCallable<Boolean> {
+
+		private static final long serialVersionUID = 5829183730284719463L;
+		
+		private ZAProxy zaproxy; 
+		private BuildListener listener;
+		
+		public ResetZAProxyCallable(ZAProxy zaproxy, BuildListener listener) {
+			this.zaproxy = zaproxy;
+			this.listener = listener;
+		}
+
+		@Override
+		public Boolean invoke(File f, VirtualChannel channel) {
+			return zaproxy.resetSession(listener);
+		}
+		
+		@Override
+		public void checkRoles(RoleChecker checker) throws SecurityException {
+			// Nothing to do
+		}
+	}
+	
+	/**
+	 * Stops the spiders and scans of a scan from its node, where the host of ZAP is known.
+	 */
+	static class StopScansCallable implements FileCallable<Void> {
+
+		private static final long serialVersionUID = -2751260379465928130L;
+		
+		private ZAProxy zaproxy; 
+		private BuildListener listener;
+		
+		public StopScansCallable(ZAProxy zaproxy, BuildListener listener) {
+			this.zaproxy = zaproxy;
+			this.listener = listener;
+		}
+
 		@Override
 		public Void invoke(File f, VirtualChannel channel) {
-			zaproxy.waitForSuccessfulConnectionToZap(TimeoutInSec, listener);
+			zaproxy.stopAllScans(listener);
 			return null;
 		}
 		
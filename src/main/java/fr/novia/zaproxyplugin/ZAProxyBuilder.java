@@ -135,38 +135,45 @@ public class ZAProxyBuilder extends Builder {
 		return (ZAProxyBuilderDescriptorImpl)super.getDescriptor();
 	}
 	
+	/**
+	 * @return the ZAProxy of one build with the global settings, the builds of the job running
+	 * at the same time don't share the object configured for the job
+	 */
+	private ZAProxy createBuildZaproxy() {
+		ZAProxy buildZaproxy = zaproxy.forBuild();
+		buildZaproxy.setZapProxyHost(getDescriptor().getZapProxyDefaultHost());
+		buildZaproxy.setZapProxyPort(getDescriptor().getZapProxyDefaultPort());
+		buildZaproxy.setZapProxyHome(getDescriptor().getZapProxyDefaultHome());
+		buildZaproxy.setZapProxyLocalLaunch(getDescriptor().getZapProxyLocalLaunch());
+		buildZaproxy.setZapProxyLeased(false);
+		return buildZaproxy;
+	}
+	
 	// Method called before launching the build
 	public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
 		
-		this.zaproxy.setZapProxyHost(getDescriptor().getZapProxyDefaultHost());
-		this.zaproxy.setZapProxyPort(getDescriptor().getZapProxyDefaultPort());
-		this.zaproxy.setZapProxyHome(getDescriptor().getZapProxyDefaultHome());
-		this.zaproxy.setZapProxyLocalLaunch(getDescriptor().getZapProxyLocalLaunch());
+		ZAProxy buildZaproxy = createBuildZaproxy();
+		
+		// The daemon is leased before the proxy is set, its port can differ from the default one
+		if(isDaemonPoolEnabled()) {
+			try {
+				ZAPDaemonPool.getInstance().lease(build, listener, createLauncher(build, listener), buildZaproxy, 
+						getDescriptor().getZapDaemonPoolSize(), getDescriptor().getZapProxyDefaultPort());
+			} catch (Exception e) {
+				e.printStackTrace();
+				listener.error(ExceptionUtils.getStackTrace(e));
+				return false;
+			}
+		}
 		
 		if (autoProxy) 
-			new AutoProxy(build, listener, projectDir, testFramework, String.format("%s:%d", getDescriptor().getZapProxyDefaultHost(), getDescriptor().getZapProxyDefaultPort())).setProxy();
+			new AutoProxy(build, listener, projectDir, testFramework, String.format("%s:%d", getDescriptor().getZapProxyDefaultHost(), buildZaproxy.getZapProxyPort())).setProxy();
 		
-		if(getDescriptor().getZapProxyLocalLaunch() && startZAPFirst) {
+		if(getDescriptor().getZapProxyLocalLaunch() && startZAPFirst && !isDaemonPoolEnabled()) {
 			listener.getLogger().println("------- START Prebuild -------");
 			
 			try {
-				Launcher launcher = null;
-				Node node = build.getBuiltOn();
-				
-				// Create launcher according to the build's location (Master or Slave) and the build's OS
-				
-				if("".equals(node.getNodeName())) { // Build on master 
-					launcher = new LocalLauncher(listener, build.getWorkspace().getChannel());
-				} else { // Build on slave
-					boolean isUnix;
-					if( "Unix".equals(((SlaveComputer)node.toComputer()).getOSDescription()) ) {
-						isUnix = true;
-					} else {
-						isUnix = false;
-					}
-					launcher = new RemoteLauncher(listener, build.getWorkspace().getChannel(), isUnix);
-				}		
-				zaproxy.startZAP(build, listener, launcher, startZAPGUI);
+				buildZaproxy.startZAP(build, listener, createLauncher(build, listener), startZAPGUI);
 			} catch (Exception e) {
 				e.printStackTrace();
 				listener.error(ExceptionUtils.getStackTrace(e));
@@ -177,6 +184,32 @@ public class ZAProxyBuilder extends Builder {
 		
 		return true;
 	}
+	
+	/**
+	 * @return true if ZAProxy is leased from the pool of daemons instead of started for the build
+	 */
+	private boolean isDaemonPoolEnabled() {
+		return getDescriptor().getZapProxyLocalLaunch() && getDescriptor().getZapDaemonPoolSize() > 0;
+	}
+	
+	/**
+	 * Create launcher according to the build's location (Master or Slave) and the build's OS
+	 */
+	private Launcher createLauncher(AbstractBuild<?, ?> build, BuildListener listener) {
+		Node node = build.getBuiltOn();
+		
+		if("".equals(node.getNodeName())) { // Build on master 
+			return new LocalLauncher(listener, build.getWorkspace().getChannel());
+		} else { // Build on slave
+			boolean isUnix;
+			if( "Unix".equals(((SlaveComputer)node.toComputer()).getOSDescription()) ) {
+				isUnix = true;
+			} else {
+				isUnix = false;
+			}
+			return new RemoteLauncher(listener, build.getWorkspace().getChannel(), isUnix);
+		}
+	}
 
 	// Method called when the build is launching
 	@Override
@@ -184,9 +217,16 @@ public class ZAProxyBuilder extends Builder {
 		
 		listener.getLogger().println("Perform ZAProxy");
 		
-		if(getDescriptor().getZapProxyLocalLaunch() && !startZAPFirst) {
+		ZAProxy buildZaproxy = createBuildZaproxy();
+		
+		// The port of the daemon leased by the prebuild
+		ZAPDaemonPool.Lease lease = build.getAction(ZAPDaemonPool.Lease.class);
+		if(lease != null) {
+			buildZaproxy.setZapProxyPort(lease.getPort());
+			buildZaproxy.setZapProxyLeased(true);
+		} else if(getDescriptor().getZapProxyLocalLaunch() && !startZAPFirst) {
 			try {
-				zaproxy.startZAP(build, listener, launcher, startZAPGUI);
+				buildZaproxy.startZAP(build, listener, launcher, startZAPGUI);
 			} catch (Exception e) {
 				e.printStackTrace();
 				listener.error(ExceptionUtils.getStackTrace(e));
@@ -197,7 +237,8 @@ public class ZAProxyBuilder extends Builder {
 		boolean res;
 		try {
 			//copyPolicyFile(build.getWorkspace(), listener); // TODO maybe in future version
-			res = build.getWorkspace().act(new ZAProxyCallable(this.zaproxy, listener));
+			buildZaproxy.setSessionKey(buildZaproxy.computeSessionKey(build.getBuildVariables()));
+			res = build.getWorkspace().act(new ZAProxyCallable(buildZaproxy, listener));
 		} catch (Exception e) {
 			e.printStackTrace();
 			listener.error(ExceptionUtils.getStackTrace(e));
@@ -227,6 +268,8 @@ public class ZAProxyBuilder extends Builder {
 		private int zapProxyDefaultPort;
 		private String zapProxyDefaultHome;
 		private boolean zapProxyLocalLaunch;
+		/** Number of ZAP daemons kept running on each node, 0 to start ZAP for each build */
+		private int zapDaemonPoolSize;
 
 		/**
 		 * In order to load the persisted global configuration, you have to
@@ -258,6 +301,7 @@ public class ZAProxyBuilder extends Builder {
 			zapProxyDefaultPort = formData.getInt("zapProxyDefaultPort");
 			zapProxyDefaultHome = formData.getString("zapProxyDefaultHome");
 			zapProxyLocalLaunch = formData.getBoolean("zapProxyLocalLaunch");
+			zapDaemonPoolSize = formData.optInt("zapDaemonPoolSize", 0);
 			// ^Can also use req.bindJSON(this, formData);
 			//  (easier when there are many fields; need set* methods for this, like setUseFrench)
 			save();
@@ -280,16 +324,20 @@ public class ZAProxyBuilder extends Builder {
 			return zapProxyLocalLaunch;
 		}
 
+		public int getZapDaemonPoolSize() {
+			return zapDaemonPoolSize;
+		}
+
 		
 	}
 	
 	/**
-	 * Used to execute ZAP remotely.
+	 * Used to execute ZAP remotely, by the build step and by the zapStart pipeline step.
 	 * 
 	 * @author ludovic.roucoux
 	 *
 	 */
-	private static class ZAProxyCallable implements FileCallable<Boolean> {
+	static class ZAProxyCallable implements FileCallable<Boolean> {
 
 		private static final long serialVersionUID = -313398999885177679L;
 		
@@ -9,6 +9,9 @@ public class ModifyClassWriterFactory
 	public final static String JUnitRunner = "org.junit.runner.Runner";
 	public final static String TestNGRunner = "org.testng.TestRunner";
 	
+	/** To increase when a class writer changes, the jars patched by the previous version are not reused */
+	public final static int WRITER_VERSION = 1;
+	
 	public static ClassVisitor createClassWriter(ClassWriter cw, String className, String proxy)
 	{
 		if (RemoteWebDriver.equals(className))
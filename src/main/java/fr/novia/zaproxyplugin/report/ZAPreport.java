@@ -24,10 +24,18 @@
 
 package fr.novia.zaproxyplugin.report;
 
+import fr.novia.zaproxyplugin.PooledClientApi;
+import hudson.FilePath;
+
 import org.zaproxy.clientapi.core.ClientApi;
 import org.zaproxy.clientapi.core.ClientApiException;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This abstract class is used to generate report in ZAP available format.
@@ -40,6 +48,8 @@ public abstract class ZAPreport implements Serializable {
 	
 	protected static final String REPORT_FORMAT_XML = "xml";
 	protected static final String REPORT_FORMAT_HTML = "html";
+	protected static final String REPORT_FORMAT_JSON = "json";
+	protected static final String REPORT_FORMAT_MD = "md";
 	
 	/** The report format */
 	protected String format;
@@ -53,6 +63,78 @@ public abstract class ZAPreport implements Serializable {
 	 */
 	public abstract byte[] generateReport(ClientApi clientApi, String apikey) throws ClientApiException;
 	
+	/**
+	 * @return the name of the ZAP API method (core/other) giving the report in the format of daughter class.
+	 */
+	protected abstract String getReportMethod();
+	
+	/**
+	 * @return the first ZAP version with the API method of this report, null if all the versions have it.
+	 */
+	protected String getMinZapVersion() {
+		return null;
+	}
+	
+	/**
+	 * @param zapVersion the version given by the ZAP API, e.g. 2.4.3
+	 * @return true if this ZAP version has the API method of this report. Development versions 
+	 * (e.g. D-2016-09-05) are assumed to have it.
+	 */
+	public boolean isSupportedBy(String zapVersion) {
+		String minVersion = getMinZapVersion();
+		if (minVersion == null || zapVersion == null)
+			return true;
+		
+		String[] version = zapVersion.trim().split("\\.");
+		String[] min = minVersion.split("\\.");
+		try {
+			for (int i = 0; i < min.length; i++) {
+				int part = i < version.length ? Integer.parseInt(version[i]) : 0;
+				int minPart = Integer.parseInt(min[i]);
+				if (part != minPart)
+					return part > minPart;
+			}
+			return true;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+	
+	/**
+	 * Write a ZAP report in the format of daughter class to a file.
+	 * With a {@link PooledClientApi}, the report is copied from the ZAP response to the file 
+	 * as it's received, so it's never held in memory whatever its size. If ZAP answers with an
+	 * error, no report is written.
+	 * @param clientApi the ZAP api to call the method to generate report
+	 * @param apikey ZAP apikey. Can be null.
+	 * @param reportFile the file to write the report to
+	 * @throws ClientApiException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void writeReport(ClientApi clientApi, String apikey, FilePath reportFile) throws ClientApiException, IOException, InterruptedException {
+		if (!(clientApi instanceof PooledClientApi)) {
+			OutputStream out = reportFile.write();
+			try {
+				out.write(generateReport(clientApi, apikey));
+			} finally {
+				out.close();
+			}
+			return;
+		}
+		
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("apikey", apikey);
+		
+		// Opened before the file, so that an error of ZAP doesn't leave an empty report
+		InputStream in = ((PooledClientApi)clientApi).openStream("other", "core", "other", getReportMethod(), params);
+		try {
+			reportFile.copyFrom(in);
+		} finally {
+			in.close();
+		}
+	}
+	
 	public String getFormat() {
 		return format;
 	}
@@ -52,10 +52,14 @@ public class ZAPreportCollection implements Serializable {
 		// ZAPreport's creation
 		ZAPreportXML reportXML = new ZAPreportXML();
 		ZAPreportHTML reportHTML = new ZAPreportHTML();
+		ZAPreportJSON reportJSON = new ZAPreportJSON();
+		ZAPreportMD reportMD = new ZAPreportMD();
 		
 		// Add ZAPreport to the map
 		mapFormatReport.put(reportXML.getFormat(), reportXML);
 		mapFormatReport.put(reportHTML.getFormat(), reportHTML);
+		mapFormatReport.put(reportJSON.getFormat(), reportJSON);
+		mapFormatReport.put(reportMD.getFormat(), reportMD);
 	}
 	
 	public static ZAPreportCollection getInstance(){
@@ -44,4 +44,9 @@ public class ZAPreportHTML extends ZAPreport {
 		return clientApi.core.htmlreport(apikey);
 	}
 
+	@Override
+	protected String getReportMethod() {
+		return "htmlreport";
+	}
+
 }
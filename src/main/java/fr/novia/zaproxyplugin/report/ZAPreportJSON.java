@@ -0,0 +1,35 @@
+package fr.novia.zaproxyplugin.report;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.zaproxy.clientapi.core.ClientApiException;
+import org.zaproxy.clientapi.core.ClientApi;
+
+/**
+ * Used to generate ZAP report in JSON. 
+ * The client API of this ZAP version has no method for this report, so it's called by its name.
+ */
+public class ZAPreportJSON extends ZAPreport {
+
+	public ZAPreportJSON() {
+		this.format = ZAPreport.REPORT_FORMAT_JSON;
+	}
+
+	@Override
+	public byte[] generateReport(ClientApi clientApi, String apikey) throws ClientApiException {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("apikey", apikey);
+		return clientApi.callApiOther("core", "other", getReportMethod(), params);
+	}
+
+	@Override
+	protected String getReportMethod() {
+		return "jsonreport";
+	}
+
+	@Override
+	protected String getMinZapVersion() {
+		return "2.7.0";
+	}
+}
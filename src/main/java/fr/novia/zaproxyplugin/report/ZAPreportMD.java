@@ -0,0 +1,35 @@
+package fr.novia.zaproxyplugin.report;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.zaproxy.clientapi.core.ClientApiException;
+import org.zaproxy.clientapi.core.ClientApi;
+
+/**
+ * Used to generate ZAP report in Markdown. 
+ * The client API of this ZAP version has no method for this report, so it's called by its name.
+ */
+public class ZAPreportMD extends ZAPreport {
+
+	public ZAPreportMD() {
+		this.format = ZAPreport.REPORT_FORMAT_MD;
+	}
+
+	@Override
+	public byte[] generateReport(ClientApi clientApi, String apikey) throws ClientApiException {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("apikey", apikey);
+		return clientApi.callApiOther("core", "other", getReportMethod(), params);
+	}
+
+	@Override
+	protected String getReportMethod() {
+		return "mdreport";
+	}
+
+	@Override
+	protected String getMinZapVersion() {
+		return "2.8.0";
+	}
+}
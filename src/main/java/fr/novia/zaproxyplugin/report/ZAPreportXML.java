@@ -24,6 +24,20 @@
 
 package fr.novia.zaproxyplugin.report;
 
+import hudson.FilePath;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
 import org.zaproxy.clientapi.core.ClientApiException;
 import org.zaproxy.clientapi.core.ClientApi;
 
@@ -43,4 +57,50 @@ public class ZAPreportXML extends ZAPreport {
 	public byte[] generateReport(ClientApi clientApi, String apikey) throws ClientApiException {
 		return clientApi.core.xmlreport(apikey);
 	}
+
+	@Override
+	protected String getReportMethod() {
+		return "xmlreport";
+	}
+	
+	/**
+	 * Write one xml report with the sites of the reports of several ZAP, the first report gets the sites of the others.
+	 * @param clientApis the ZAP api of each ZAP
+	 * @param apikey ZAP apikey. Can be null.
+	 * @param reportFile the file to write the report to
+	 * @throws ClientApiException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void writeMergedReport(List<ClientApi> clientApis, String apikey, FilePath reportFile) throws ClientApiException, IOException, InterruptedException {
+		Document merged = null;
+		
+		for (ClientApi clientApi : clientApis) {
+			byte[] bytes = generateReport(clientApi, apikey);
+			Document report;
+			try {
+				report = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(bytes));
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+			
+			if (merged == null) {
+				merged = report;
+				continue;
+			}
+			
+			NodeList sites = report.getDocumentElement().getElementsByTagName("site");
+			for (int i = 0; i < sites.getLength(); i++)
+				merged.getDocumentElement().appendChild(merged.importNode(sites.item(i), true));
+		}
+		
+		OutputStream out = reportFile.write();
+		try {
+			TransformerFactory.newInstance().newTransformer().transform(new DOMSource(merged), new StreamResult(out));
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			out.close();
+		}
+	}
 }